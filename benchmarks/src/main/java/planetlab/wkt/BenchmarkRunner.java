@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Locale;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs {@link ParserBenchmark} with the GC profiler and writes results in JSON format.
+ * Two files are written: the JMH report, and a summary with throughput and allocation per row.
+ *
+ * <p>Arguments (all optional):</p>
+ * <ul>
+ *   <li>{@code --rows 1000,100000}: comma-separated sizes of generated CSV files.</li>
+ *   <li>{@code --output jmh.json}: the JMH report. The summary is written in the same directory
+ *       with {@code "-rows"} suffix.</li>
+ *   <li>{@code --include regex}: subset of benchmarks to run.</li>
+ * </ul>
+ */
+public final class BenchmarkRunner {
+    private BenchmarkRunner() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        String rows = "10000", output = "jmh.json", include = ParserBenchmark.class.getSimpleName();
+        for (int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--rows":    rows    = args[++i]; break;
+                case "--output":  output  = args[++i]; break;
+                case "--include": include = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        final Path report = Paths.get(output);
+        final ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(include)
+                .param("rows", rows.split(","))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(report.toString());
+        final Collection<RunResult> results = new Runner(options.build()).run();
+        final String name = report.getFileName().toString().replaceFirst("\\.json$", "");
+        try (BufferedWriter out = Files.newBufferedWriter(report.resolveSibling(name + "-rows.json"))) {
+            out.write('[');
+            String separator = "\n";
+            for (final RunResult result : results) {
+                final String benchmark = result.getParams().getBenchmark();
+                final int size = Integer.parseInt(result.getParams().getParam("rows"));
+                final Result<?> perRow = result.getSecondaryResults().get("rows");
+                final Result<?> alloc  = result.getSecondaryResults().get("gc.alloc.rate.norm");
+                final double ops = result.getPrimaryResult().getScore();
+                final double rowsPerOp = (perRow != null && ops > 0) ? perRow.getScore() / ops : size;
+                out.write(separator);
+                out.write(String.format(Locale.ROOT,
+                        "  {\"benchmark\": \"%s\", \"rows\": %d, \"rowsPerSecond\": %.3f, \"bytesPerRow\": %.3f}",
+                        benchmark, size,
+                        (perRow != null) ? perRow.getScore() : Double.NaN,
+                        (alloc  != null) ? alloc.getScore() / rowsPerOp : Double.NaN));
+                separator = ",\n";
+            }
+            out.write("\n]\n");
+        }
+    }
+}
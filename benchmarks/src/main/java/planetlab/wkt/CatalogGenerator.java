@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+
+/**
+ * Writes synthetic {@code "ellipsoid.csv"}, {@code "datum.csv"}, {@code "planetodetic.csv"}
+ * and {@code "projection.csv"} files. The same seed always produces the same files.
+ * Each file contains the requested number of rows, and each row references a row
+ * of the upstream file which is valid for the downstream parser.
+ *
+ * <p>Rows follow the layout of the IAU catalog: the code of each object is a body number
+ * multiplied by 100, plus 0 to 2 for planetodetic CRSs and 10 or more for projected CRSs.
+ * Some names contain commas or quotes, and projection methods are a mix of the methods found
+ * in the IAU catalog, including a few methods not supported by Apache SIS.</p>
+ *
+ * <p>This class can also be executed for writing files to use with {@link Main}:</p>
+ *
+ * <pre>java -cp target/benchmarks.jar planetlab.wkt.CatalogGenerator [--seed n] [--rows n] directory</pre>
+ */
+final class CatalogGenerator {
+    /**
+     * Authority and version written in all rows.
+     */
+    private static final String AUTHORITY = "IAU", VERSION = "2015";
+
+    /**
+     * Number of the first body, so that codes have as many digits as the codes of planets in the IAU catalog.
+     */
+    private static final int FIRST_BODY = 100;
+
+    /**
+     * Number of planetodetic CRSs per body: sphere (planetocentric), planetographic and planetocentric.
+     */
+    private static final int CRS_PER_BODY = 3;
+
+    /**
+     * Projections written for each body, in code order. Repeated methods appear more often,
+     * as in the IAU catalog. The last parameters are completed by {@link #projection}.
+     */
+    private static final String[][] PROJECTIONS = {
+        {"Equirectangular",                 "Equirectangular",                 "Central_Meridian", "Standard_Parallel_1"},
+        {"Equirectangular, clon = 180",     "Equirectangular",                 "Central_Meridian", "Standard_Parallel_1"},
+        {"Sinusoidal",                      "Sinusoidal",                      "Longitude_Of_Center"},
+        {"Sinusoidal, clon = 180",          "Sinusoidal",                      "Longitude_Of_Center"},
+        {"North Polar",                     "Polar Stereographic (variant A)", "Latitude_Of_Origin", "Central_Meridian", "Scale_Factor"},
+        {"South Polar",                     "Polar Stereographic (variant A)", "Latitude_Of_Origin", "Central_Meridian", "Scale_Factor"},
+        {"Mollweide",                       "Mollweide",                       "Central_Meridian"},
+        {"Mollweide, clon = 180",           "Mollweide",                       "Central_Meridian"},
+        {"Mercator",                        "Mercator_1SP",                    "Central_Meridian", "Scale_Factor"},
+        {"Transverse Mercator",             "Transverse_Mercator",             "Central_Meridian", "Latitude_Of_Origin", "Scale_Factor"},
+        {"Lambert Conformal Conic North",   "Lambert_Conformal_Conic",         "Central_Meridian", "Standard_Parallel_1", "Standard_Parallel_2", "Latitude_Of_Origin"},
+        {"Lambert Conformal Conic South",   "Lambert_Conformal_Conic",         "Central_Meridian", "Standard_Parallel_1", "Standard_Parallel_2", "Latitude_Of_Origin"},
+        {"Robinson",                        "Robinson",                        "Longitude_Of_Center"},
+        {"Orthographic",                    "Orthographic",                    "Longitude_Of_Center", "Latitude_Of_Center"},
+        {"Lambert Azimuthal Equal Area",    "Lambert_Azimuthal_Equal_Area",    "Longitude_Of_Center", "Latitude_Of_Center"},
+    };
+
+    private final Random random;
+
+    CatalogGenerator(final long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Writes CSV files in the directory given on the command line.
+     */
+    public static void main(final String[] args) throws IOException {
+        long seed = 1;
+        int rows = 1000;
+        Path directory = null;
+        for (int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--rows": rows = Integer.parseInt(args[++i]); break;
+                default: {
+                    if (args[i].startsWith("--") || directory != null) {
+                        throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                    }
+                    directory = Paths.get(args[i]);
+                }
+            }
+        }
+        if (directory == null) {
+            throw new IllegalArgumentException("Missing directory.");
+        }
+        new CatalogGenerator(seed).write(directory, rows);
+    }
+
+    /**
+     * Writes all CSV files in the given directory.
+     */
+    void write(final Path directory, final int rows) throws IOException {
+        Files.createDirectories(directory);
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("ellipsoid.csv"))) {
+            out.write("authority,version,code,name,semiMajorAxis,semiMedianAxis,semiMinorAxis,inverseFlatenning");
+            out.newLine();
+            for (int i=0; i<rows; i++) {
+                final long a = 100_000 + random.nextInt(70_000_000);
+                final int  shape = random.nextInt(8);
+                if (shape < 3) {
+                    head(out, code(i, 0), "Body " + body(i) + " (2015) - Sphere");
+                    out.write(a + ",," + a + ',');
+                } else if (shape < 7) {
+                    head(out, code(i, 0), "Body " + body(i) + " (2015), IAU");
+                    out.write(a + ",," + (a - random.nextInt((int) (a / 50))) + ',');
+                } else {
+                    head(out, code(i, 0), "Body " + body(i) + " (2015), flattened");
+                    out.write(a + ",,," + (50 + random.nextInt(25000) / 100.0));
+                }
+                out.newLine();
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("datum.csv"))) {
+            out.write("authority,version,code,name,body,ellipsoid,primeMeridianName,primeMeridianValue");
+            out.newLine();
+            for (int i=0; i<rows; i++) {
+                head(out, code(i, 0), "D_Body_" + body(i));
+                out.write("Body " + body(i) + ',' + key(code(i, 0)) + ",Reference Meridian,0");
+                out.newLine();
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("planetodetic.csv"))) {
+            out.write("authority,version,code,name,datum,csType,longitudeDirection");
+            out.newLine();
+            for (int i=0; i<rows; i++) {
+                final int b = i / CRS_PER_BODY;
+                final String datum = key(code(b, 0));
+                switch (i % CRS_PER_BODY) {
+                    case 0: {
+                        head(out, code(b, 0), "Body " + body(b) + " (2015) - Sphere / Ocentric");
+                        out.write(datum + ",spherical,east");
+                        break;
+                    }
+                    case 1: {
+                        // Planetographic longitudes are positive toward west, except for retrograde bodies.
+                        head(out, code(b, 1), "Body " + body(b) + " (2015) / Ographic");
+                        out.write(datum + ",ellipsoidal," + (random.nextInt(10) == 0 ? "east" : "west"));
+                        break;
+                    }
+                    default: {
+                        head(out, code(b, 2), "Body " + body(b) + " (2015) / Ocentric");
+                        out.write(datum + ",ellipsoidal,east");
+                        break;
+                    }
+                }
+                out.newLine();
+            }
+        }
+        try (BufferedWriter out = Files.newBufferedWriter(directory.resolve("projection.csv"))) {
+            out.write("authority,version,code,name,baseCRS,method,parameterName,parameterValue");
+            out.newLine();
+            for (int i=0; i<rows; i++) {
+                projection(out, i);
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes the projected CRS at the given row. Each body has two projected CRSs per projection,
+     * one for the planetographic CRS and one for the planetocentric CRS.
+     */
+    private void projection(final BufferedWriter out, final int row) throws IOException {
+        final int perBody = 2 * PROJECTIONS.length;
+        final int b       = row / perBody;
+        final int slot    = row % perBody;
+        final int crs     = 1 + (slot & 1);
+        final String[] projection = PROJECTIONS[slot >> 1];
+        final String name = projection[0];
+        final String prefix = (crs == 1) ? " / Ographic / " : " / Ocentric / ";
+        head(out, code(b, 10 + slot), "Body " + body(b) + " (2015)" + prefix + name);
+        out.write(key(code(b, crs)) + ',' + projection[1]);
+        final boolean south = name.contains("South");
+        for (int i=2; i<projection.length; i++) {
+            final String parameter = projection[i];
+            final String value;
+            switch (parameter) {
+                case "Central_Meridian":
+                case "Longitude_Of_Center": {
+                    value = name.endsWith("180") ? "180" : (random.nextInt(4) == 0 ? Integer.toString(random.nextInt(360) - 180) : "0");
+                    break;
+                }
+                case "Latitude_Of_Origin": {
+                    if (name.endsWith("Polar")) value = south ? "-90" : "90";
+                    else value = "0";
+                    break;
+                }
+                case "Standard_Parallel_1":
+                case "Standard_Parallel_2": {
+                    final int latitude = (projection[1].startsWith("Lambert") ? 20 : 0) + random.nextInt(40);
+                    value = Integer.toString(south ? -latitude : latitude);
+                    break;
+                }
+                case "Latitude_Of_Center": {
+                    value = Integer.toString(random.nextInt(181) - 90);
+                    break;
+                }
+                case "Scale_Factor": {
+                    value = projection[1].startsWith("Transverse") ? "0.9996" : "1";
+                    break;
+                }
+                default: throw new AssertionError(parameter);
+            }
+            out.write(',' + parameter + ',' + value);
+        }
+        out.write(",False_Easting,0,False_Northing,0");
+    }
+
+    /**
+     * Writes the authority, version, code and name columns, followed by a separator.
+     * Names containing a comma are quoted. Some names are given a quoted nickname for testing escapes.
+     */
+    private void head(final BufferedWriter out, final int code, final String name) throws IOException {
+        out.write(AUTHORITY + ',' + VERSION + ',' + code + ',');
+        if (random.nextInt(50) == 0) {
+            out.write('"' + name + " \"\"minor\"\"\",");
+            return;
+        }
+        if (name.indexOf(',') >= 0 || name.indexOf('"') >= 0) {
+            out.write('"' + name.replace("\"", "\"\"") + '"');
+        } else {
+            out.write(name);
+        }
+        out.write(',');
+    }
+
+    /**
+     * Returns the body number for the given body index.
+     */
+    private static int body(final int index) {
+        return FIRST_BODY + index;
+    }
+
+    /**
+     * Returns the code of an object of the given body, with the given IAU suffix (0 to 99).
+     */
+    private static int code(final int index, final int suffix) {
+        return body(index) * 100 + suffix;
+    }
+
+    /**
+     * Returns the key used for referencing the upstream object of the given code.
+     */
+    private static String key(final int code) {
+        return AUTHORITY + ':' + VERSION + ':' + code;
+    }
+}
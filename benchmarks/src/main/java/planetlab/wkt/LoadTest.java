@@ -0,0 +1,219 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+
+/**
+ * Runs the whole conversion ({@link Main}) on generated catalogs of increasing sizes and records how
+ * the cost grows with the number of rows. Each conversion is executed in a new JVM, so measurements
+ * include startup and are not affected by previous runs. For each size, this class records:
+ *
+ * <ul>
+ *   <li>the wall time of the child JVM, from process start to exit;</li>
+ *   <li>the peak resident set size of the child JVM ({@code VmHWM}, available on Linux only);</li>
+ *   <li>the number, total and maximal duration of GC pauses, parsed from the unified GC log.</li>
+ * </ul>
+ *
+ * The scaling exponent between two consecutive sizes is the logarithm of the time ratio divided by the
+ * logarithm of the size ratio: 1 for linear behavior, and more than 1 for super-linear behavior.
+ *
+ * <p>Arguments (all optional):</p>
+ * <ul>
+ *   <li>{@code --rows 1000,10000,100000}: comma-separated number of rows in each generated CSV file.</li>
+ *   <li>{@code --seed 1}: seed of the {@link CatalogGenerator}.</li>
+ *   <li>{@code --jvm "-Xmx4g"}: space-separated options of the child JVM.</li>
+ *   <li>{@code --args "--threads 4"}: space-separated options given to {@link Main}.</li>
+ *   <li>{@code --output load.json}: file where to write the results.</li>
+ * </ul>
+ *
+ * Usage: {@code java -cp target/benchmarks.jar planetlab.wkt.LoadTest --rows 1000,10000,100000}
+ */
+public final class LoadTest {
+    /**
+     * Interval between two readings of the resident set size of the child JVM, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = 20;
+
+    /**
+     * Duration of a GC pause at the end of a unified logging line, for example
+     * {@code "[gc] GC(3) Pause Young (Normal) (G1 Evacuation Pause) 24M->3M(256M) 2.345ms"}.
+     */
+    private static final Pattern PAUSE = Pattern.compile("\\bPause\\b.*?(\\d+(?:\\.\\d+)?)ms\\s*$");
+
+    /**
+     * Peak resident set size in the {@code /proc/<pid>/status} file.
+     */
+    private static final Pattern PEAK = Pattern.compile("VmHWM:\\s*(\\d+)\\s*kB");
+
+    /**
+     * Measurements of a conversion.
+     */
+    private static final class Run {
+        final int rows;
+        int exitCode;
+        double seconds, peakMegabytes = Double.NaN, totalPauseMillis, maxPauseMillis;
+        long pauses;
+
+        Run(final int rows) {
+            this.rows = rows;
+        }
+    }
+
+    private LoadTest() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        String rows = "1000,10000,100000", jvm = "", options = "", output = "load.json";
+        long seed = 1;
+        for (int i=0; i<args.length; i++) {
+            switch (args[i]) {
+                case "--rows":   rows    = args[++i]; break;
+                case "--seed":   seed    = Long.parseLong(args[++i]); break;
+                case "--jvm":    jvm     = args[++i]; break;
+                case "--args":   options = args[++i]; break;
+                case "--output": output  = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        final List<Run> runs = new ArrayList<>();
+        for (final String size : rows.split(",")) {
+            final Path directory = Files.createTempDirectory("wkt-load");
+            try {
+                new CatalogGenerator(seed).write(directory, Integer.parseInt(size.trim()));
+                final Run run = run(directory, Integer.parseInt(size.trim()), split(jvm), split(options));
+                runs.add(run);
+                System.out.printf(Locale.ROOT, "%,12d rows: %8.2f s, %8.1f µs/row, peak %8.1f MB, %5d GC pauses (total %8.1f ms, max %6.1f ms)%s%n",
+                        run.rows, run.seconds, run.seconds * 1E6 / run.rows, run.peakMegabytes,
+                        run.pauses, run.totalPauseMillis, run.maxPauseMillis,
+                        (run.exitCode != 0) ? " FAILED (exit code " + run.exitCode + ')' : "");
+            } finally {
+                try (Stream<Path> files = Files.walk(directory)) {
+                    files.sorted(Comparator.reverseOrder()).forEach((file) -> file.toFile().delete());
+                }
+            }
+        }
+        write(Paths.get(output), runs);
+    }
+
+    /**
+     * Splits a space-separated list of options.
+     */
+    private static List<String> split(final String options) {
+        return options.isBlank() ? List.of() : Arrays.asList(options.trim().split("\\s+"));
+    }
+
+    /**
+     * Converts the CSV files of the given directory in a child JVM and measures the conversion.
+     * The output of the child JVM and its GC log are written in the directory.
+     */
+    private static Run run(final Path directory, final int rows, final List<String> jvm, final List<String> options)
+            throws IOException, InterruptedException
+    {
+        final Path gcLog = directory.resolve("gc.log");
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvm);
+        command.add("-Xlog:gc:file=" + gcLog);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.addAll(options);
+        command.add(directory.toString());
+
+        final Run run = new Run(rows);
+        final long start = System.nanoTime();
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(directory.resolve("main.log").toFile()).start();
+        /*
+         * VmHWM is the highest resident set size since the process started, so the last value read
+         * before the process exits is the peak (ignoring the growth during the last polling interval).
+         */
+        final Path status = Paths.get("/proc", Long.toString(process.pid()), "status");
+        while (process.isAlive()) {
+            try {
+                final Matcher m = PEAK.matcher(Files.readString(status));
+                if (m.find()) {
+                    run.peakMegabytes = Long.parseLong(m.group(1)) / 1024.0;
+                }
+            } catch (NoSuchFileException e) {
+                // Not on Linux, or the process exited.
+            }
+            Thread.sleep(POLL_INTERVAL);
+        }
+        run.exitCode = process.waitFor();
+        run.seconds  = (System.nanoTime() - start) / 1E9;
+        if (Files.exists(gcLog)) {
+            for (final String line : Files.readAllLines(gcLog)) {
+                final Matcher m = PAUSE.matcher(line);
+                if (m.find()) {
+                    final double pause = Double.parseDouble(m.group(1));
+                    run.pauses++;
+                    run.totalPauseMillis += pause;
+                    run.maxPauseMillis = Math.max(run.maxPauseMillis, pause);
+                }
+            }
+        }
+        return run;
+    }
+
+    /**
+     * Writes the measurements in JSON format, with the scaling exponent relative to the previous size.
+     */
+    private static void write(final Path file, final List<Run> runs) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write('[');
+            String separator = "\n";
+            Run previous = null;
+            for (final Run run : runs) {
+                double exponent = Double.NaN;
+                if (previous != null && previous.rows != run.rows && previous.seconds > 0) {
+                    exponent = Math.log(run.seconds / previous.seconds) / Math.log((double) run.rows / previous.rows);
+                }
+                out.write(separator);
+                out.write(String.format(Locale.ROOT,
+                        "  {\"rows\": %d, \"exitCode\": %d, \"seconds\": %.3f, \"microsPerRow\": %.3f, \"peakMegabytes\": %s,"
+                        + " \"gcPauses\": %d, \"gcPauseMillis\": %.3f, \"gcMaxPauseMillis\": %.3f, \"scalingExponent\": %s}",
+                        run.rows, run.exitCode, run.seconds, run.seconds * 1E6 / run.rows, number(run.peakMegabytes),
+                        run.pauses, run.totalPauseMillis, run.maxPauseMillis, number(exponent)));
+                separator = ",\n";
+                previous = run;
+            }
+            out.write("\n]\n");
+        }
+    }
+
+    /**
+     * Formats the given number for JSON, or {@code null} if the number is NaN.
+     */
+    private static String number(final double value) {
+        return Double.isNaN(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+}
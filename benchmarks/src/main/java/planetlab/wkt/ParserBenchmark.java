@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opengis.util.FactoryException;
+
+
+/**
+ * Measures each parser stage and the WKT writer separately. Each benchmark operation processes
+ * a whole generated file of {@link #rows} rows, with upstream stages loaded once before measurement.
+ * The number of processed rows is reported as a secondary "rows" throughput metric.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+    /**
+     * Number of rows in each generated CSV file.
+     */
+    @Param("10000")
+    public int rows;
+
+    private Path directory, output;
+
+    private EllipsoidParser ellipsoids;
+
+    private DatumParser datums;
+
+    private PlanetodeticParser planetodetics;
+
+    private ProjectedParser projected;
+
+    /**
+     * Counts the rows processed by each benchmark operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Rows {
+        public long rows;
+    }
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException, FactoryException {
+        directory = Files.createTempDirectory("wkt-bench");
+        output    = directory.resolve("wkt.txt");
+        new CatalogGenerator(1).write(directory, rows);
+        ellipsoids = new EllipsoidParser();
+        ellipsoids.read(directory.resolve("ellipsoid.csv"));
+        datums = new DatumParser(ellipsoids);
+        datums.read(directory.resolve("datum.csv"));
+        planetodetics = new PlanetodeticParser(datums);
+        planetodetics.read(directory.resolve("planetodetic.csv"));
+        projected = new ProjectedParser(planetodetics);
+        projected.read(directory.resolve("projection.csv"));
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach((file) -> file.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public EllipsoidParser ellipsoids(final Rows counter) throws IOException, FactoryException {
+        final EllipsoidParser parser = new EllipsoidParser();
+        parser.read(directory.resolve("ellipsoid.csv"));
+        counter.rows += rows;
+        return parser;
+    }
+
+    @Benchmark
+    public DatumParser datums(final Rows counter) throws IOException, FactoryException {
+        final DatumParser parser = new DatumParser(ellipsoids);
+        parser.read(directory.resolve("datum.csv"));
+        counter.rows += rows;
+        return parser;
+    }
+
+    @Benchmark
+    public PlanetodeticParser planetodetics(final Rows counter) throws IOException, FactoryException {
+        final PlanetodeticParser parser = new PlanetodeticParser(datums);
+        parser.read(directory.resolve("planetodetic.csv"));
+        counter.rows += rows;
+        return parser;
+    }
+
+    @Benchmark
+    public ProjectedParser projected(final Rows counter) throws IOException, FactoryException {
+        final ProjectedParser parser = new ProjectedParser(planetodetics);
+        parser.read(directory.resolve("projection.csv"));
+        counter.rows += rows;
+        return parser;
+    }
+
+    @Benchmark
+    public void save(final Rows counter) throws IOException, FactoryException {
+        Parser.save(output, planetodetics, projected);
+        counter.rows += 2L * rows;
+    }
+}
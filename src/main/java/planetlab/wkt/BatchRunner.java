@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+
+/**
+ * Conversion of the CSV files of many directories, for example one directory per catalog release.
+ * Directories are converted concurrently by a fixed number of jobs, each job running a {@link Pipeline}.
+ * Since each pipeline may itself use many threads, the number of busy threads is bounded by the number
+ * of jobs multiplied by {@link Pipeline#parallelism}.
+ *
+ * <p>All pipelines share the same Apache SIS factories and the pool of canonical instances of {@link Parser},
+ * so equal axes, coordinate systems and ellipsoids created for different directories are the same instances.
+ * A failure in a directory is reported and does not stop the conversion of other directories.</p>
+ */
+final class BatchRunner {
+    /**
+     * Conversion of a single directory.
+     */
+    private static final class Job {
+        final Path directory;
+
+        /**
+         * Counters and timers of each stage, or {@code null} if the conversion failed.
+         */
+        Metrics[] stages;
+
+        /**
+         * Number of objects read, accepted and rejected by all parsers,
+         * and number of objects which did not pass the verification.
+         */
+        long read, accepted, rejected, mismatches;
+
+        /**
+         * Elapsed time of the conversion, in nanoseconds.
+         */
+        long elapsedTime;
+
+        /**
+         * The exception that stopped the conversion, or {@code null} if it succeeded.
+         */
+        Exception failure;
+
+        Job(final Path directory) {
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * The directories to convert, in the order to report them.
+     */
+    private final List<Path> directories;
+
+    /**
+     * Maximal number of directories converted concurrently.
+     */
+    private final int jobs;
+
+    /**
+     * Sets the options of the pipeline of each directory.
+     */
+    private final Consumer<Pipeline> options;
+
+    /**
+     * Number of objects which did not pass the verification in all directories of the last run.
+     */
+    private long mismatches;
+
+    /**
+     * Creates a runner for the given directories.
+     *
+     * @param  directories  the directories to convert.
+     * @param  jobs         maximal number of directories converted concurrently.
+     * @param  options      sets the options of the pipeline of each directory.
+     */
+    BatchRunner(final List<Path> directories, final int jobs, final Consumer<Pipeline> options) {
+        this.directories = directories;
+        this.jobs        = jobs;
+        this.options     = options;
+    }
+
+    /**
+     * Reads a manifest listing one directory per line. Empty lines and lines starting with {@code '#'}
+     * are ignored. Relative paths are resolved against the directory of the manifest.
+     */
+    static List<Path> manifest(final Path file) throws IOException {
+        final Path base = file.toAbsolutePath().getParent();
+        final List<Path> directories = new ArrayList<>();
+        for (String line : Files.readAllLines(file)) {
+            line = line.trim();
+            if (!line.isEmpty() && line.charAt(0) != '#') {
+                directories.add(base.resolve(line));
+            }
+        }
+        return directories;
+    }
+
+    /**
+     * Converts all directories, writes the summary of each directory in that directory
+     * and writes the combined summary in the given file.
+     *
+     * @return number of directories that failed.
+     * @see #mismatches()
+     */
+    int run(final Path summary) throws IOException {
+        final long start = System.nanoTime();
+        final List<Job> done = new ArrayList<>(directories.size());
+        final List<Future<Job>> pending = new ArrayList<>(directories.size());
+        final ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            for (final Path directory : directories) {
+                pending.add(executor.submit(() -> convert(new Job(directory))));
+            }
+            for (final Future<Job> task : pending) {
+                done.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            // Should not happen since convert(Job) catches exceptions.
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        final long elapsed = System.nanoTime() - start;
+        long accepted = 0;
+        int failed = 0;
+        mismatches = 0;
+        for (final Job job : done) {
+            accepted   += job.accepted;
+            mismatches += job.mismatches;
+            if (job.failure != null) failed++;
+        }
+        System.err.printf("Converted %d directories (%d failed, %d mismatches) in %d ms, %d objects at %.0f objects/s.%n",
+                done.size(), failed, mismatches, Metrics.millis(elapsed), accepted, accepted / (elapsed / 1E9));
+        write(summary, done, elapsed);
+        return failed;
+    }
+
+    /**
+     * Returns the number of objects which did not pass the verification in all directories of the last run.
+     * This is zero if the verification is disabled.
+     */
+    long mismatches() {
+        return mismatches;
+    }
+
+    /**
+     * Converts the directory of the given job and reports the result.
+     * Exceptions are stored in the job instead of being propagated.
+     */
+    private Job convert(final Job job) {
+        final long start = System.nanoTime();
+        try {
+            final Pipeline pipeline = new Pipeline(job.directory);
+            options.accept(pipeline);
+            pipeline.run();
+            job.stages     = pipeline.metrics();
+            job.mismatches = pipeline.mismatches();
+            for (final Parser<?> parser : List.of(pipeline.ellipsoids, pipeline.datums, pipeline.planetodetics, pipeline.projected)) {
+                final Metrics stage = parser.metrics();
+                job.read     += stage.read.sum();
+                job.accepted += stage.accepted.sum();
+                job.rejected += stage.rejected();
+            }
+            Metrics.write(job.directory.resolve(Main.SUMMARY), pipeline.elapsedTime(), job.stages);
+        } catch (Exception e) {
+            job.failure = e;
+        }
+        job.elapsedTime = System.nanoTime() - start;
+        if (job.failure != null) {
+            System.err.println(job.directory + ": failed after " + Metrics.millis(job.elapsedTime) + " ms: " + job.failure);
+        } else {
+            System.err.println(job.directory + ": " + job.read + " rows read, " + job.accepted + " accepted, "
+                    + job.rejected + " rejected" + (job.mismatches != 0 ? ", " + job.mismatches + " mismatches" : "")
+                    + " in " + Metrics.millis(job.elapsedTime) + " ms.");
+        }
+        return job;
+    }
+
+    /**
+     * Writes a JSON summary of all directories, with the stages of each directory.
+     */
+    private static void write(final Path file, final List<Job> done, final long elapsed) throws IOException {
+        final StringBuilder out = new StringBuilder("{\n  \"directories\": [\n");
+        String separator = "";
+        long read = 0, accepted = 0, rejected = 0, mismatches = 0, cumulated = 0;
+        int failed = 0;
+        for (final Job job : done) {
+            out.append(separator).append("    {\"directory\": ").append(Metrics.quote(job.directory.toString()))
+               .append(", \"elapsedMillis\": ").append(Metrics.millis(job.elapsedTime));
+            if (job.failure != null) {
+                out.append(", \"failure\": ").append(Metrics.quote(job.failure.toString())).append('}');
+                failed++;
+            } else {
+                out.append(", \"read\": ").append(job.read)
+                   .append(", \"accepted\": ").append(job.accepted)
+                   .append(", \"rejected\": ").append(job.rejected)
+                   .append(", \"mismatches\": ").append(job.mismatches)
+                   .append(", \"stages\": [\n");
+                String next = "";
+                for (final Metrics stage : job.stages) {
+                    out.append(next);
+                    stage.appendJSON(out, "      ");
+                    next = ",\n";
+                }
+                out.append("\n    ]}");
+            }
+            separator = ",\n";
+            read       += job.read;
+            accepted   += job.accepted;
+            rejected   += job.rejected;
+            mismatches += job.mismatches;
+            cumulated  += job.elapsedTime;
+        }
+        out.append("\n  ],\n  \"failed\": ").append(failed)
+           .append(",\n  \"read\": ").append(read)
+           .append(",\n  \"accepted\": ").append(accepted)
+           .append(",\n  \"rejected\": ").append(rejected)
+           .append(",\n  \"mismatches\": ").append(mismatches)
+           .append(",\n  \"cumulatedMillis\": ").append(Metrics.millis(cumulated))
+           .append(",\n  \"elapsedMillis\": ").append(Metrics.millis(elapsed)).append("\n}\n");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.append(out);
+        }
+    }
+}
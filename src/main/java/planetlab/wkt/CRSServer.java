@@ -0,0 +1,357 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.opengis.referencing.IdentifiedObject;
+import org.opengis.util.FactoryException;
+
+
+/**
+ * Local HTTP server answering CRS lookups from an in-memory registry. The server listens on the loopback
+ * address only. The registry is loaded from the CSV files at startup, and reloaded when those files change.
+ * A reload builds a new registry in the background, then replaces the old one in a single assignment,
+ * so requests are never blocked by a reload.
+ *
+ * <p>Requests:</p>
+ * <ul>
+ *   <li>{@code GET /crs?code=IAU:2015:49901}: WKT of the CRS for the given {@code "authority:version:code"} key.</li>
+ *   <li>{@code GET /crs?name=Mars%20Sinusoidal}: WKT of all CRSs having the given name, ignoring case.</li>
+ *   <li>{@code GET /crs?body=499}: WKT of all CRSs of the given body (IAU code divided by 100).</li>
+ *   <li>{@code GET /metrics}: number of requests and latency percentiles in JSON.</li>
+ * </ul>
+ *
+ * When many CRSs match, their WKT are separated by an empty line. The WKT of all CRSs are formatted once
+ * when the registry is loaded, by the same {@link WKTWriter} than the main output of the conversion,
+ * so the responses contain the same texts than {@code wkt.txt}. Responses are kept in a LRU cache,
+ * which is discarded when the registry is reloaded.
+ */
+final class CRSServer implements Closeable {
+    /**
+     * Time without change in CSV files to wait before to reload, in milliseconds.
+     */
+    private static final long RELOAD_DELAY = 500;
+
+    /**
+     * Number of latency samples kept for computing percentiles.
+     */
+    private static final int SAMPLES = 8192;
+
+    /**
+     * WKT of the CRSs loaded from the CSV files, together with the cache of responses computed from them.
+     * Instances are never modified after construction, except the cache.
+     */
+    private static final class Registry {
+        /**
+         * WKT of all CRSs by {@code "authority:version:code"} key, in the order of the CSV files.
+         */
+        final Map<String,String> byCode;
+
+        /**
+         * Keys of CRSs by lower-case name, and by body.
+         */
+        final Map<String,List<String>> byName, byBody;
+
+        /**
+         * Formatted responses by request, in least recently used order.
+         */
+        private final Map<String,byte[]> responses;
+
+        /**
+         * Creates a registry for the given CRSs and their WKT. The CRSs are used only for indexing their names.
+         */
+        Registry(final Map<String,IdentifiedObject> crs, final Map<String,String> texts, final int cacheSize) {
+            byCode = texts;
+            byName = new HashMap<>();
+            byBody = new HashMap<>();
+            for (final Map.Entry<String,IdentifiedObject> entry : crs.entrySet()) {
+                final String key = entry.getKey();
+                final String name = entry.getValue().getName().getCode().toLowerCase(Locale.ROOT);
+                byName.computeIfAbsent(name, (k) -> new ArrayList<>()).add(key);
+                final String body = ShardedStore.body(key);
+                if (body != null) {
+                    byBody.computeIfAbsent(body, (k) -> new ArrayList<>()).add(key);
+                }
+            }
+            responses = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(final Map.Entry<String,byte[]> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+        }
+
+        /**
+         * Returns the cached response for the given request, or {@code null} if none.
+         */
+        byte[] cached(final String request) {
+            synchronized (responses) {
+                return responses.get(request);
+            }
+        }
+
+        /**
+         * Caches the response for the given request.
+         */
+        void cache(final String request, final byte[] response) {
+            synchronized (responses) {
+                responses.put(request, response);
+            }
+        }
+    }
+
+    /**
+     * Directory of the CSV files.
+     */
+    private final Path directory;
+
+    /**
+     * Number of threads for parsing CSV files.
+     */
+    private final int parallelism;
+
+    /**
+     * Maximal number of responses in the cache.
+     */
+    private final int cacheSize;
+
+    /**
+     * The current registry. Replaced after each reload.
+     */
+    private volatile Registry registry;
+
+    /**
+     * Duration of the most recent requests in nanoseconds, used as a circular buffer.
+     */
+    private final AtomicLongArray latencies;
+
+    /**
+     * Total number of requests.
+     */
+    private final AtomicLong requests;
+
+    /**
+     * The HTTP server, the threads handling requests, and the watcher of CSV files.
+     */
+    private HttpServer server;
+    private ExecutorService executor;
+    private DirectoryWatcher watcher;
+
+    /**
+     * Creates a server for the CSV files in the given directory, and loads them.
+     */
+    CRSServer(final Path directory, final int parallelism, final int cacheSize) throws IOException, FactoryException {
+        this.directory   = directory;
+        this.parallelism = parallelism;
+        this.cacheSize   = cacheSize;
+        latencies = new AtomicLongArray(SAMPLES);
+        requests  = new AtomicLong();
+        registry  = load();
+    }
+
+    /**
+     * Reads all CSV files and returns a new registry of planetodetic and projected CRSs.
+     * The CRSs are formatted as in the main output of the conversion, but no file is written.
+     */
+    private Registry load() throws IOException, FactoryException {
+        final EllipsoidParser ellipsoids = new EllipsoidParser();
+        ellipsoids.read(directory.resolve(Pipeline.ELLIPSOIDS), parallelism);
+        final DatumParser datums = new DatumParser(ellipsoids);
+        datums.read(directory.resolve(Pipeline.DATUMS), parallelism);
+        final PlanetodeticParser planetodetics = new PlanetodeticParser(datums);
+        planetodetics.read(directory.resolve(Pipeline.PLANETODETICS), parallelism);
+        final ProjectedParser projected = new ProjectedParser(planetodetics);
+        projected.read(directory.resolve(Pipeline.PROJECTIONS), parallelism);
+        final Map<String,IdentifiedObject> crs = new LinkedHashMap<>(planetodetics.results());
+        crs.putAll(projected.results());
+        final Map<String,String> texts = new LinkedHashMap<>(crs.size() * 2);
+        try (WKTWriter out = new WKTWriter(null, parallelism, WKTWriter.DEFAULT_BUFFER_SIZE)) {
+            out.listener = texts::put;
+            planetodetics.write(out);
+            projected.write(out);
+        }
+        return new Registry(crs, Collections.unmodifiableMap(texts), cacheSize);
+    }
+
+    /**
+     * Starts the server on the given port of the loopback address, and starts watching the CSV files.
+     *
+     * @param  port     the port, or 0 for any free port.
+     * @param  threads  number of threads handling requests.
+     * @return the port on which the server listens.
+     */
+    int start(final int port, final int threads) throws IOException {
+        executor = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/crs", this::lookup);
+        server.createContext("/metrics", this::metrics);
+        server.setExecutor(executor);
+        server.start();
+        watcher = new DirectoryWatcher(directory, RELOAD_DELAY, (files) -> {
+            final long start = System.nanoTime();
+            final Registry reloaded = load();
+            registry = reloaded;
+            System.err.println("Reloaded " + reloaded.byCode.size() + " CRSs after changes in " + files + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms.");
+        });
+        watcher.start();
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Answers a {@code /crs} request.
+     */
+    private void lookup(final HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Only GET is supported.");
+                return;
+            }
+            final String query = exchange.getRequestURI().getRawQuery();
+            final Registry current = registry;
+            byte[] response = (query != null) ? current.cached(query) : null;
+            if (response == null) {
+                final List<String> keys = keys(current, query);
+                if (keys == null) {
+                    send(exchange, 400, "Expected code, name or body parameter.");
+                    return;
+                }
+                if (keys.isEmpty()) {
+                    send(exchange, 404, "No CRS found.");
+                    return;
+                }
+                final StringBuilder buffer = new StringBuilder();
+                for (final String key : keys) {
+                    if (buffer.length() != 0) {
+                        buffer.append(System.lineSeparator()).append(System.lineSeparator());
+                    }
+                    buffer.append(current.byCode.get(key));
+                }
+                response = buffer.append(System.lineSeparator()).toString().getBytes(StandardCharsets.UTF_8);
+                current.cache(query, response);
+            }
+            send(exchange, 200, response);
+        } finally {
+            exchange.close();
+            record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the keys of CRSs matching the given query, or {@code null} if the query is invalid.
+     */
+    private static List<String> keys(final Registry registry, final String query) {
+        if (query != null) {
+            for (final String parameter : query.split("&")) {
+                final int s = parameter.indexOf('=');
+                if (s > 0) {
+                    final String value = URLDecoder.decode(parameter.substring(s + 1), StandardCharsets.UTF_8);
+                    final List<String> keys;
+                    switch (parameter.substring(0, s)) {
+                        case "code": {
+                            return registry.byCode.containsKey(value) ? List.of(value) : List.of();
+                        }
+                        case "name": keys = registry.byName.get(value.toLowerCase(Locale.ROOT)); break;
+                        case "body": keys = registry.byBody.get(value); break;
+                        default: continue;
+                    }
+                    return (keys != null) ? keys : List.of();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Answers a {@code /metrics} request with latency percentiles in milliseconds.
+     */
+    private void metrics(final HttpExchange exchange) throws IOException {
+        try {
+            final long count = requests.get();
+            final long[] samples = new long[(int) Math.min(count, SAMPLES)];
+            for (int i=0; i<samples.length; i++) {
+                samples[i] = latencies.get(i);
+            }
+            Arrays.sort(samples);
+            final StringBuilder json = new StringBuilder("{\"requests\": ").append(count)
+                    .append(", \"crs\": ").append(registry.byCode.size());
+            final String[] labels = {"p50", "p90", "p99", "max"};
+            final double[] ranks  = {0.50, 0.90, 0.99, 1};
+            for (int i=0; i<labels.length; i++) {
+                json.append(", \"").append(labels[i]).append("Millis\": ");
+                if (samples.length == 0) {
+                    json.append("null");
+                } else {
+                    final int index = Math.min(samples.length - 1, (int) Math.ceil(ranks[i] * samples.length) - 1);
+                    json.append(samples[Math.max(index, 0)] / 1E6);
+                }
+            }
+            send(exchange, 200, json.append("}\n").toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Records the duration of a request.
+     */
+    private void record(final long duration) {
+        latencies.set((int) (requests.getAndIncrement() % SAMPLES), duration);
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final String text) throws IOException {
+        send(exchange, status, (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(final HttpExchange exchange, final int status, final byte[] response) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    /**
+     * Stops the server and the watcher of CSV files.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watcher  != null) watcher.close();
+        if (server   != null) server.stop(0);
+        if (executor != null) executor.shutdown();
+    }
+}
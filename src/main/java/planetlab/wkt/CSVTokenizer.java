@@ -0,0 +1,427 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+
+/**
+ * Splits the content of a CSV file into records and columns, following RFC 4180 rules.
+ * Fields may be enclosed between {@code '"'} quotes, in which case they can contain commas,
+ * line separators and escaped quotes ({@code ""}). Unquoted fields are trimmed of ASCII white spaces.
+ * Empty lines and lines starting with {@code '#'} are skipped.
+ *
+ * <p>The tokenizer works directly on the UTF-8 bytes of the file and remembers only the bounds
+ * of the columns in the current record. Since all delimiters are ASCII characters and UTF-8 never
+ * uses ASCII values inside multi-bytes sequences, only the column values need to be decoded.
+ * Strings are created by {@link #column(int)} and {@link #columns()} only, and the array returned
+ * by the latter is recycled between records having the same number of columns. Consequently callers
+ * shall not keep a reference to that array. {@link RowTable} compares columns with existing strings
+ * by {@link #columnEquals(int, String)}, without creating new strings.</p>
+ */
+final class CSVTokenizer {
+    /**
+     * The character used for separating columns.
+     */
+    private static final byte SEPARATOR = ',';
+
+    /**
+     * The character used for quoting fields.
+     */
+    private static final byte QUOTE = '"';
+
+    /**
+     * The UTF-8 bytes of the whole CSV file, usually memory-mapped.
+     * Only absolute get operations are used, so the buffer can be shared by many tokenizers.
+     */
+    private final ByteBuffer bytes;
+
+    /**
+     * Index after the last byte to parse.
+     */
+    private final int limit;
+
+    /**
+     * Index of the next byte to parse.
+     */
+    private int position;
+
+    /**
+     * Start and end indices in {@link #bytes} of the current record, excluding line separator.
+     */
+    private int recordStart, recordEnd;
+
+    /**
+     * Start and end indices in {@link #bytes} of each column of the current record.
+     * Values at even indices are inclusive start and values at odd indices are exclusive end.
+     */
+    private int[] bounds;
+
+    /**
+     * Whether the column at the corresponding index contains escaped quotes ({@code ""}).
+     */
+    private boolean[] escaped;
+
+    /**
+     * Number of columns in the current record.
+     */
+    private int count;
+
+    /**
+     * Arrays returned by {@link #columns()}, indexed by array length.
+     */
+    private String[][] recycled;
+
+    /**
+     * A view of {@link #bytes} used for copying column values in {@link #scratch}. Created when first needed.
+     */
+    private ByteBuffer view;
+
+    /**
+     * Temporary buffer for the bytes of a column to decode.
+     */
+    private byte[] scratch;
+
+    /**
+     * Creates a tokenizer for the bytes between the given indices.
+     */
+    private CSVTokenizer(final ByteBuffer bytes, final int start, final int end) {
+        this.bytes = bytes;
+        position   = start;
+        limit      = end;
+        bounds     = new int[16];
+        escaped    = new boolean[8];
+        recycled   = new String[8][];
+        scratch    = new byte[64];
+    }
+
+    /**
+     * Creates a tokenizer for the remaining bytes of the given buffer, assumed encoded in UTF-8.
+     * The buffer content is not copied and its position is not modified.
+     */
+    CSVTokenizer(final ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.limit());
+    }
+
+    /**
+     * Creates a tokenizer for the given characters, which are encoded in UTF-8.
+     */
+    CSVTokenizer(final char[] chars, final int offset, final int length) {
+        this(StandardCharsets.UTF_8.encode(CharBuffer.wrap(chars, offset, length)));
+    }
+
+    /**
+     * Creates a tokenizer for the content of the given file, assumed encoded in UTF-8.
+     * The file is memory-mapped and is not decoded, so the heap does not need to hold the file content.
+     * The file shall not be truncated while the records are parsed.
+     */
+    static CSVTokenizer open(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new CSVTokenizer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Returns a tokenizer for the bytes between the given indices,
+     * which shall be values returned by {@link #split(int)}.
+     */
+    CSVTokenizer subset(final int start, final int end) {
+        return new CSVTokenizer(bytes, start, end);
+    }
+
+    /**
+     * Returns the number of bytes not yet parsed.
+     */
+    int remaining() {
+        return limit - position;
+    }
+
+    /**
+     * Splits the remaining bytes in at most {@code count} chunks of similar length.
+     * Chunks are aligned on record boundaries, taking quoted line separators and comment lines
+     * in account. As in {@link #next()}, a quote begins a quoted field only at the beginning of
+     * a field. The returned array contains the start index of each chunk followed by the end
+     * index of the last chunk.
+     */
+    int[] split(final int count) {
+        final int[] splits = new int[count + 1];
+        final long step = (limit - position) / count;
+        boolean lineStart = true, fieldStart = true;
+        int p = position, n = 0;
+        splits[n++] = p;
+        while (p < limit && n < count) {
+            final byte c = bytes.get(p++);
+            if (lineStart && c == '#') {
+                while (p < limit && bytes.get(p) != '\n' && bytes.get(p) != '\r') p++;
+                continue;
+            }
+            lineStart = false;
+            switch (c) {
+                case QUOTE: {
+                    if (fieldStart) {
+                        p = skipQuoted(p);
+                        fieldStart = false;
+                    }
+                    break;
+                }
+                case SEPARATOR: fieldStart = true; break;
+                case '\r': lineStart = fieldStart = true; break;
+                case '\n': {
+                    lineStart = fieldStart = true;
+                    if (p - splits[0] >= step * n) {
+                        splits[n++] = p;
+                    }
+                    break;
+                }
+                default: {
+                    if (!isBlank(c)) fieldStart = false;
+                    break;
+                }
+            }
+        }
+        if (splits[n-1] != limit) {
+            splits[n++] = limit;
+        }
+        return Arrays.copyOf(splits, n);
+    }
+
+    /**
+     * Returns the index after the closing quote of a quoted field, or the limit if the quote is not closed.
+     *
+     * @param  p  index after the opening quote.
+     */
+    private int skipQuoted(int p) {
+        while (p < limit) {
+            if (bytes.get(p++) == QUOTE) {
+                if (p < limit && bytes.get(p) == QUOTE) {
+                    p++;                            // Escaped quote.
+                } else {
+                    return p;
+                }
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Returns {@code true} if the given byte is an ASCII white space other than a line separator.
+     */
+    private static boolean isBlank(final byte c) {
+        return c >= 0 && c != '\n' && c != '\r' && Character.isWhitespace(c);
+    }
+
+    /**
+     * Returns {@code true} if the given byte terminates an unquoted field.
+     */
+    private static boolean isDelimiter(final byte c) {
+        return c == SEPARATOR || c == '\n' || c == '\r';
+    }
+
+    /**
+     * Moves to the next record, skipping empty lines and comment lines.
+     *
+     * @return {@code false} if there is no more record.
+     */
+    boolean next() {
+        count = 0;
+        while (position < limit) {
+            switch (bytes.get(position)) {
+                case '\n':
+                case '\r': position++; break;
+                case '#': {
+                    do position++;
+                    while (position < limit && bytes.get(position) != '\n' && bytes.get(position) != '\r');
+                    break;
+                }
+                default: {
+                    parseRecord();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the bounds of all columns in the record starting at current position,
+     * then moves the position to the beginning of next line.
+     */
+    private void parseRecord() {
+        int p = recordStart = position;
+        while (true) {
+            while (p < limit && isBlank(bytes.get(p))) p++;
+            int start, end;
+            boolean hasEscape = false;
+            if (p < limit && bytes.get(p) == QUOTE) {
+                start = ++p;
+                while (true) {
+                    if (p >= limit) {
+                        end = p;                        // Unterminated quote: take everything.
+                        break;
+                    }
+                    if (bytes.get(p) == QUOTE) {
+                        if (p+1 < limit && bytes.get(p+1) == QUOTE) {
+                            hasEscape = true;
+                            p += 2;
+                            continue;
+                        }
+                        end = p++;
+                        break;
+                    }
+                    p++;
+                }
+                while (p < limit && !isDelimiter(bytes.get(p))) p++;      // Ignore characters after closing quote.
+            } else {
+                start = p;
+                while (p < limit && !isDelimiter(bytes.get(p))) p++;
+                end = p;
+                while (end > start && isBlank(bytes.get(end - 1))) end--;
+            }
+            addColumn(start, end, hasEscape);
+            if (p < limit && bytes.get(p) == SEPARATOR) {
+                p++;
+            } else {
+                recordEnd = p;
+                if (p < limit && bytes.get(p) == '\r') p++;
+                if (p < limit && bytes.get(p) == '\n') p++;
+                break;
+            }
+        }
+        position = p;
+    }
+
+    /**
+     * Appends the bounds of a column in the current record.
+     */
+    private void addColumn(final int start, final int end, final boolean hasEscape) {
+        if (count >= escaped.length) {
+            escaped = Arrays.copyOf(escaped, count * 2);
+            bounds  = Arrays.copyOf(bounds,  count * 4);
+        }
+        bounds[count*2    ] = start;
+        bounds[count*2 + 1] = end;
+        escaped[count++] = hasEscape;
+    }
+
+    /**
+     * Returns a 64 bits hash code (FNV-1a) of all bytes in the current record.
+     */
+    long hash() {
+        long hash = 0xCBF29CE484222325L;
+        for (int p=recordStart; p<recordEnd; p++) {
+            hash = (hash ^ (bytes.get(p) & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the number of columns in the current record.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     * Returns the value of the column at the given index in the current record.
+     */
+    String column(final int index) {
+        final int start = bounds[index*2];
+        final int end   = bounds[index*2 + 1];
+        if (start >= end) {
+            return "";
+        }
+        final int length = end - start;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        if (view == null) {
+            view = bytes.duplicate();
+        }
+        view.limit(end).position(start);
+        view.get(scratch, 0, length);
+        final String value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        return escaped[index] ? value.replace("\"\"", "\"") : value;
+    }
+
+    /**
+     * Returns whether the value of the given column contains escaped quotes,
+     * in which case {@link #columnHash(int)} and {@link #columnEquals(int, String)} shall not be used.
+     */
+    boolean isEscaped(final int index) {
+        return escaped[index];
+    }
+
+    /**
+     * Returns the hash code of the given column, computed as {@link String#hashCode()} would do
+     * on the value returned by {@link #column(int)}. This method does not create a string,
+     * unless the column contains non-ASCII characters.
+     */
+    int columnHash(final int index) {
+        int hash = 0;
+        for (int p=bounds[index*2], end=bounds[index*2 + 1]; p<end; p++) {
+            final byte c = bytes.get(p);
+            if (c < 0) {
+                return column(index).hashCode();
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns whether the value of the given column is equal to the given string.
+     * This method does not create a string, unless the column contains non-ASCII characters.
+     */
+    boolean columnEquals(final int index, final String value) {
+        final int start  = bounds[index*2];
+        final int length = bounds[index*2 + 1] - start;
+        for (int i=0; i<length; i++) {
+            final byte c = bytes.get(start + i);
+            if (c < 0) {
+                return column(index).equals(value);
+            }
+            if (i >= value.length() || c != value.charAt(i)) {
+                return false;
+            }
+        }
+        return value.length() == length;
+    }
+
+    /**
+     * Returns the values of all columns in the current record. The returned array is recycled
+     * by the next call to this method for any record having the same number of columns.
+     */
+    String[] columns() {
+        if (count >= recycled.length) {
+            recycled = Arrays.copyOf(recycled, count + 1);
+        }
+        String[] columns = recycled[count];
+        if (columns == null) {
+            recycled[count] = columns = new String[count];
+        }
+        for (int i=0; i<count; i++) {
+            columns[i] = column(i);
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Content hash of each CSV row and WKT produced for it in a previous run, used for incremental conversion.
+ * The hash of a row includes the hash of the upstream row it references (ellipsoid → datum → CRS → projection),
+ * so a change in an ellipsoid row invalidates all rows depending on it. Rows having the same hash than in the
+ * previous run are not rebuilt, and their previous WKT is written again. Hashes are recorded separately for
+ * each stage, since an ellipsoid, a datum and a CRS often have the same code. WKT are recorded by key only,
+ * since only CRSs are written and their codes are distinct.
+ *
+ * <p>When many conversions are executed in the same JVM, the same cache can be reused by invoking
+ * {@link #next(boolean)} after each run. The cache can also be kept in memory only, without file.</p>
+ *
+ * <p>The cache shall be deleted after an upgrade of this program or of Apache SIS,
+ * since those upgrades may change the WKT produced for an unchanged row.</p>
+ */
+final class ConversionCache {
+    /**
+     * Identifies the file format. The version number shall be incremented after incompatible changes.
+     */
+    private static final int MAGIC = 0x574B5443, VERSION = 3;
+
+    /**
+     * The file where the cache is saved, or {@code null} if the cache is kept in memory only.
+     */
+    private final Path file;
+
+    /**
+     * Hashes of the rows of the previous run by stage, then by key.
+     */
+    private Map<String,Map<String,Long>> previous;
+
+    /**
+     * Hashes of the rows of the current run by stage, then by key, to be saved for the next run.
+     */
+    private Map<String,Map<String,Long>> current;
+
+    /**
+     * WKT written in the previous run and in the current run, by key.
+     */
+    private Map<String,String> previousTexts, currentTexts;
+
+    /**
+     * Loads the cache from the given file if it exists.
+     * A file written by an incompatible version is ignored.
+     *
+     * @param  file  the file where the cache is saved, or {@code null} for a cache kept in memory only.
+     */
+    ConversionCache(final Path file) throws IOException {
+        this.file = file;
+        current      = new ConcurrentHashMap<>();
+        currentTexts = new ConcurrentHashMap<>();
+        Map<String,Map<String,Long>> hashes = Collections.emptyMap();
+        Map<String,String> texts = Collections.emptyMap();
+        if (file != null) try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                hashes = new HashMap<>();
+                while (in.readBoolean()) {
+                    final Map<String,Long> stage = new HashMap<>();
+                    hashes.put(in.readUTF(), stage);
+                    while (in.readBoolean()) {
+                        stage.put(in.readUTF(), in.readLong());
+                    }
+                }
+                texts = new HashMap<>();
+                while (in.readBoolean()) {
+                    final String key = in.readUTF();
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    texts.put(key, new String(bytes, StandardCharsets.UTF_8));
+                }
+            }
+        } catch (NoSuchFileException | EOFException e) {
+            // No previous run, or previous run interrupted. Rebuild everything.
+            hashes = Collections.emptyMap();
+            texts  = Collections.emptyMap();
+        }
+        previous      = hashes;
+        previousTexts = texts;
+    }
+
+    /**
+     * Returns {@code true} if the row for the given key has the same hash than in the previous run.
+     *
+     * @param  stage  name of the stage which read the row.
+     */
+    boolean isUnchanged(final String stage, final String key, final long hash) {
+        final Map<String,Long> hashes = previous.get(stage);
+        if (hashes != null) {
+            final Long previousHash = hashes.get(key);
+            return (previousHash != null) && previousHash == hash;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the WKT written in the previous run for the given key, or {@code null} if none.
+     * Shall be invoked only for keys where {@link #isUnchanged(String, String, long)} returned {@code true}.
+     */
+    String text(final String key) {
+        return previousTexts.get(key);
+    }
+
+    /**
+     * Records the hash of a row accepted in the current run.
+     *
+     * @param  stage  name of the stage which read the row.
+     */
+    void record(final String stage, final String key, final long hash) {
+        current.computeIfAbsent(stage, (k) -> new ConcurrentHashMap<>()).put(key, hash);
+    }
+
+    /**
+     * Records the WKT written in the current run for the given key.
+     */
+    void setText(final String key, final String text) {
+        currentTexts.put(key, text);
+    }
+
+    /**
+     * Prepares this cache for another run in the same JVM. If the current run succeeded, its entries
+     * replace the entries of the previous run. Otherwise they are discarded, since they may be incomplete.
+     */
+    void next(final boolean success) {
+        if (success) {
+            previous      = current;
+            previousTexts = currentTexts;
+        }
+        current      = new ConcurrentHashMap<>();
+        currentTexts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Saves the entries of the current run. The previous file is replaced only after the new one is complete.
+     * This method does nothing if the cache is kept in memory only.
+     */
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (final Map.Entry<String,Map<String,Long>> stage : current.entrySet()) {
+                out.writeBoolean(true);
+                out.writeUTF(stage.getKey());
+                for (final Map.Entry<String,Long> entry : stage.getValue().entrySet()) {
+                    out.writeBoolean(true);
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+                out.writeBoolean(false);
+            }
+            out.writeBoolean(false);
+            for (final Map.Entry<String,String> entry : currentTexts.entrySet()) {
+                final byte[] bytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -33,6 +33,25 @@ final class DatumParser extends Parser<GeodeticDatum> {
         this.ellipsoids = ellipsoids;
     }
 
+    @Override
+    DatumParser fork() {
+        return new DatumParser(ellipsoids);
+    }
+
+    @Override
+    RowTable.Kind kind(final int column) {
+        switch (column) {
+            case 6:  return RowTable.Kind.WORD;
+            case 7:  return RowTable.Kind.NUMBER;
+            default: return super.kind(column);
+        }
+    }
+
+    @Override
+    long dependency(final RowTable rows, final int row) {
+        return ellipsoids.hash(rows.text(row, 5));
+    }
+
     /*
      * Columns order in CSV file:
      *   [0]: authority
@@ -45,17 +64,17 @@ final class DatumParser extends Parser<GeodeticDatum> {
      *   [7]: primeMeridianValue
      */
     @Override
-    protected GeodeticDatum create(final String[] columns) throws FactoryException {
-        final Ellipsoid ellipsoid = ellipsoids.get(columns[5]);
+    protected GeodeticDatum create(final RowTable rows, final int row) throws FactoryException {
+        final Ellipsoid ellipsoid = ellipsoids.get(rows.text(row, 5));
         if (ellipsoid != null) {
             final DatumFactory datumFactory = getDatumFactory();
-            final Map<String,?> properties = properties(columns);
-            final double primeMeridianValue = parseDouble(columns, 7);
+            final Map<String,?> properties = properties(rows, row);
+            final double primeMeridianValue = rows.number(row, 7);
             if (primeMeridianValue > 0) {
-                System.err.println("Non-zero prime meridian not yet supported.");
+                return reject("Non-zero prime meridian not yet supported");
             } else {
                 return datumFactory.createGeodeticDatum(properties, ellipsoid,
-                       datumFactory.createPrimeMeridian(name(columns[6]), primeMeridianValue, Units.DEGREE));
+                       unique(datumFactory.createPrimeMeridian(name(rows.text(row, 6)), primeMeridianValue, Units.DEGREE)));
             }
         }
         return null;
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Watches the CSV files of a directory and notifies a listener after they changed.
+ * Bursts of changes (for example an editor writing a file in many steps, or a copy of many files)
+ * are merged: the listener is invoked only after no change happened during the debouncing delay.
+ * The listener is invoked in the watcher thread, so changes occurring during its execution are
+ * reported in the next invocation.
+ */
+final class DirectoryWatcher implements Runnable, Closeable {
+    /**
+     * Action to execute after some CSV files changed.
+     */
+    @FunctionalInterface
+    interface Listener {
+        /**
+         * Invoked with the names of the CSV files that changed since the previous invocation.
+         */
+        void changed(Set<String> files) throws Exception;
+    }
+
+    /**
+     * The watched directory.
+     */
+    private final Path directory;
+
+    /**
+     * The service notifying file changes.
+     */
+    private final WatchService service;
+
+    /**
+     * Time without change to wait before to notify the listener, in milliseconds.
+     */
+    private final long debounce;
+
+    /**
+     * The action to execute after changes.
+     */
+    private final Listener listener;
+
+    /**
+     * Starts watching the given directory. Notifications start after {@link #start()} is invoked.
+     */
+    DirectoryWatcher(final Path directory, final long debounce, final Listener listener) throws IOException {
+        this.directory = directory;
+        this.debounce  = debounce;
+        this.listener  = listener;
+        service = directory.getFileSystem().newWatchService();
+        directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Starts notifying changes in a daemon thread.
+     */
+    void start() {
+        final Thread thread = new Thread(this, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits for changes and notifies the listener until this watcher is closed.
+     */
+    @Override
+    public void run() {
+        final Set<String> changed = new TreeSet<>();
+        try {
+            WatchKey key = service.take();
+            while (true) {
+                if (key != null) {
+                    for (final WatchEvent<?> event : key.pollEvents()) {
+                        final Object context = event.context();
+                        if (context instanceof Path) {
+                            final String name = ((Path) context).getFileName().toString();
+                            if (name.endsWith(".csv")) {
+                                changed.add(name);
+                            }
+                        }
+                    }
+                    key.reset();
+                    key = service.poll(debounce, TimeUnit.MILLISECONDS);
+                } else {
+                    if (!changed.isEmpty()) try {
+                        listener.changed(Set.copyOf(changed));
+                    } catch (Exception e) {
+                        System.err.println("Can not process changes in " + directory + ": " + e);
+                    }
+                    changed.clear();
+                    key = service.take();
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Watcher closed. Stop silently.
+        }
+    }
+
+    /**
+     * Stops watching the directory.
+     */
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}
@@ -29,6 +29,16 @@ final class EllipsoidParser extends Parser<Ellipsoid> {
     EllipsoidParser() {
     }
 
+    @Override
+    EllipsoidParser fork() {
+        return new EllipsoidParser();
+    }
+
+    @Override
+    RowTable.Kind kind(final int column) {
+        return (column >= 4 && column <= 7) ? RowTable.Kind.NUMBER : super.kind(column);
+    }
+
     /*
      * Columns order in CSV file:
      *   [0]: authority
@@ -41,20 +51,19 @@ final class EllipsoidParser extends Parser<Ellipsoid> {
      *   [7]: inverseFlatenning
      */
     @Override
-    protected Ellipsoid create(final String[] columns) throws FactoryException {
+    protected Ellipsoid create(final RowTable rows, final int row) throws FactoryException {
         final DatumFactory datumFactory = getDatumFactory();
-        final double semiMajorAxis     = parseDouble(columns, 4);
-        final double semiMedianAxis    = parseDouble(columns, 5);
-        final double semiMinorAxis     = parseDouble(columns, 6);
-        final double inverseFlattening = parseDouble(columns, 7);
-        final Map<String,?> properties = properties(columns);
+        final double semiMajorAxis     = rows.number(row, 4);
+        final double semiMedianAxis    = rows.number(row, 5);
+        final double semiMinorAxis     = rows.number(row, 6);
+        final double inverseFlattening = rows.number(row, 7);
+        final Map<String,?> properties = properties(rows, row);
         if (semiMedianAxis > 0) {
-            System.err.println("Triaxal ellipsoid not yet supported.");
-            return null;
+            return reject("Triaxal ellipsoid not yet supported");
         } else if (inverseFlattening > 0) {
-            return datumFactory.createFlattenedSphere(properties, semiMajorAxis, inverseFlattening, Units.METRE);
+            return unique(datumFactory.createFlattenedSphere(properties, semiMajorAxis, inverseFlattening, Units.METRE));
         } else {
-            return datumFactory.createEllipsoid(properties, semiMajorAxis, semiMinorAxis, Units.METRE);
+            return unique(datumFactory.createEllipsoid(properties, semiMajorAxis, semiMinorAxis, Units.METRE));
         }
    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+import org.apache.sis.io.wkt.Convention;
+import org.apache.sis.io.wkt.WKTFormat;
+
+
+/**
+ * The formats in which objects can be written by {@link WKTWriter}.
+ */
+enum Encoding {
+    /**
+     * ISO 19162 Well Known Text. This is the default format.
+     */
+    WKT2(Convention.WKT2),
+
+    /**
+     * ISO 19162 Well Known Text with the simplified syntax.
+     */
+    WKT2_SIMPLIFIED(Convention.WKT2_SIMPLIFIED),
+
+    /**
+     * OGC 01-009 Well Known Text (WKT 1).
+     */
+    WKT1(Convention.WKT1),
+
+    /**
+     * One JSON object per line. See {@link JSONEncoder}.
+     */
+    JSON(null);
+
+    /**
+     * The WKT convention, or {@code null} if this encoding is not WKT.
+     */
+    private final Convention convention;
+
+    private Encoding(final Convention convention) {
+        this.convention = convention;
+    }
+
+    /**
+     * Returns the encoding for the given name, ignoring case. Hyphens can be used instead of underscores.
+     *
+     * @throws IllegalArgumentException if the name is not recognized.
+     */
+    static Encoding parse(final String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown format: " + name, e);
+        }
+    }
+
+    /**
+     * Returns whether this encoding writes each object on a single line.
+     * Otherwise objects are separated by an empty line.
+     */
+    boolean isSingleLine() {
+        return convention == null;
+    }
+
+    /**
+     * Creates a function formatting objects in this encoding. The returned function is not thread-safe,
+     * so a new function shall be created for each thread. All functions created for the same output shall
+     * share the same {@code fragments} map, which caches the encoding of components shared by many objects
+     * when this encoding allows to reuse them. This map shall be thread-safe, and should have weak keys
+     * for not keeping the components of replaced objects reachable.
+     */
+    Function<Object,String> formatter(final Map<Object,String> fragments) {
+        if (convention == null) {
+            return new JSONEncoder(fragments);
+        }
+        final WKTFormat format = new WKTFormat(null, null);
+        format.setConvention(convention);
+        return format::format;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Java Flight Recorder events emitted during a conversion. Those events are recorded only when
+ * a flight recording is running with the {@code "planetlab.wkt.*"} events enabled, for example
+ * with {@code -XX:StartFlightRecording}. Otherwise their cost is negligible.
+ */
+final class Events {
+    private Events() {
+    }
+
+    /**
+     * Reading of a CSV file by a parser.
+     */
+    @Name("planetlab.wkt.Stage")
+    @Label("CSV Stage")
+    @Category("WKT Conversion")
+    @Description("Reading of a CSV file and creation of the objects it defines.")
+    @StackTrace(false)
+    static final class Stage extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("File")
+        String file;
+
+        @Label("Rows Read")
+        long read;
+
+        @Label("Rows Accepted")
+        long accepted;
+
+        @Label("Rows Rejected")
+        long rejected;
+
+        @Label("Rows Duplicated")
+        long duplicated;
+    }
+
+    /**
+     * A row which has been rejected or ignored.
+     */
+    @Name("planetlab.wkt.Rejection")
+    @Label("Row Rejection")
+    @Category("WKT Conversion")
+    @Description("A CSV row for which no object has been created.")
+    @StackTrace(false)
+    static final class Rejection extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Key")
+        String key;
+
+        @Label("Reason")
+        String reason;
+    }
+
+    /**
+     * Writing of WKT in an output file.
+     */
+    @Name("planetlab.wkt.Save")
+    @Label("WKT Save")
+    @Category("WKT Conversion")
+    @Description("Formatting and writing of objects in WKT format.")
+    @StackTrace(false)
+    static final class Save extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Objects Written")
+        long written;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import javax.measure.Unit;
+import org.apache.sis.internal.util.CollectionsExt;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.referencing.IdentifiedObject;
+import org.opengis.referencing.ReferenceIdentifier;
+import org.opengis.referencing.crs.GeodeticCRS;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.crs.ProjectedCRS;
+import org.opengis.referencing.cs.CartesianCS;
+import org.opengis.referencing.cs.CoordinateSystem;
+import org.opengis.referencing.cs.CoordinateSystemAxis;
+import org.opengis.referencing.cs.EllipsoidalCS;
+import org.opengis.referencing.cs.SphericalCS;
+import org.opengis.referencing.datum.Ellipsoid;
+import org.opengis.referencing.datum.GeodeticDatum;
+import org.opengis.referencing.datum.PrimeMeridian;
+import org.opengis.referencing.operation.Conversion;
+
+
+/**
+ * Encodes geodetic and projected CRSs in a JSON object written on a single line.
+ * Property names are similar to PROJJSON, but this encoding does not claim conformance to it.
+ *
+ * <p>Many projected CRSs share the same base CRS, and many CRSs share the same datum and ellipsoid.
+ * The encoding of those components is computed once and cached in a map shared by all encoders of
+ * the same output. That map has weak keys, like the pool of {@link Parser#unique(Object)}, so it does
+ * not keep the components reachable after the objects using them are discarded. This is not possible with {@link org.apache.sis.io.wkt.WKTFormat}, which does
+ * not allow to insert a previously formatted fragment.</p>
+ */
+final class JSONEncoder implements Function<Object,String> {
+    /**
+     * Encoding of ellipsoids, datums and geodetic CRSs, shared by all encoders of the same output.
+     */
+    private final Map<Object,String> fragments;
+
+    /**
+     * Creates an encoder using the given thread-safe and weak-keyed map as a cache of shared components.
+     */
+    JSONEncoder(final Map<Object,String> fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Encodes the given object.
+     *
+     * @throws IllegalArgumentException if the object is not a geodetic or projected CRS, datum or ellipsoid.
+     */
+    @Override
+    public String apply(final Object object) {
+        final StringBuilder out = new StringBuilder(1024);
+        if (object instanceof ProjectedCRS) {
+            projected(out, (ProjectedCRS) object);
+        } else if (object instanceof GeodeticCRS) {
+            fragment(out, (GeodeticCRS) object, this::geodetic);
+        } else if (object instanceof GeodeticDatum) {
+            fragment(out, (GeodeticDatum) object, this::datum);
+        } else if (object instanceof Ellipsoid) {
+            fragment(out, (Ellipsoid) object, this::ellipsoid);
+        } else {
+            throw new IllegalArgumentException("Can not encode " + object.getClass().getSimpleName() + " in JSON.");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends the encoding of the given component, computing it only if not already in the cache.
+     */
+    private <E> void fragment(final StringBuilder out, final E component, final BiConsumer<StringBuilder,E> encoder) {
+        String text = fragments.get(component);
+        if (text == null) {
+            final StringBuilder buffer = new StringBuilder(512);
+            encoder.accept(buffer, component);
+            text = buffer.toString();
+            fragments.putIfAbsent(component, text);
+        }
+        out.append(text);
+    }
+
+    /**
+     * Appends the type and name of the given object. The opening brace is appended, but not the closing one.
+     */
+    private static void begin(final StringBuilder out, final String type, final IdentifiedObject object) {
+        out.append('{');
+        if (type != null) {
+            out.append("\"type\": \"").append(type).append("\", ");
+        }
+        out.append("\"name\": ").append(Metrics.quote(object.getName().getCode()));
+    }
+
+    /**
+     * Appends the identifier of the given object if any, then the closing brace.
+     */
+    private static void end(final StringBuilder out, final IdentifiedObject object) {
+        final ReferenceIdentifier id = CollectionsExt.first(object.getIdentifiers());
+        if (id != null) {
+            out.append(", \"id\": {\"authority\": ").append(Metrics.quote(String.valueOf(id.getCodeSpace())));
+            if (id.getVersion() != null) {
+                out.append(", \"version\": ").append(Metrics.quote(id.getVersion()));
+            }
+            out.append(", \"code\": ").append(Metrics.quote(id.getCode())).append('}');
+        }
+        out.append('}');
+    }
+
+    /**
+     * Appends the given number, or {@code null} if the number is NaN or infinite.
+     */
+    private static StringBuilder number(final StringBuilder out, final double value) {
+        return Double.isFinite(value) ? out.append(value) : out.append("null");
+    }
+
+    /**
+     * Appends the symbol of the given unit.
+     */
+    private static StringBuilder unit(final StringBuilder out, final Unit<?> unit) {
+        return out.append(Metrics.quote(String.valueOf(unit)));
+    }
+
+    private void projected(final StringBuilder out, final ProjectedCRS crs) {
+        begin(out, "ProjectedCRS", crs);
+        out.append(", \"base_crs\": ");
+        fragment(out, crs.getBaseCRS(), this::geodetic);
+        final Conversion conversion = crs.getConversionFromBase();
+        out.append(", \"conversion\": ");
+        begin(out, null, conversion);
+        out.append(", \"method\": ");
+        begin(out, null, conversion.getMethod());
+        end(out, conversion.getMethod());
+        out.append(", \"parameters\": [");
+        String separator = "";
+        for (final GeneralParameterValue param : conversion.getParameterValues().values()) {
+            if (param instanceof ParameterValue<?>) {
+                final ParameterValue<?> p = (ParameterValue<?>) param;
+                out.append(separator).append("{\"name\": ").append(Metrics.quote(p.getDescriptor().getName().getCode()))
+                   .append(", \"value\": ");
+                final Object value = p.getValue();
+                if (value instanceof Number) {
+                    number(out, ((Number) value).doubleValue());
+                } else {
+                    out.append(value != null ? Metrics.quote(value.toString()) : "null");
+                }
+                if (p.getUnit() != null) {
+                    unit(out.append(", \"unit\": "), p.getUnit());
+                }
+                out.append('}');
+                separator = ", ";
+            }
+        }
+        out.append(']');
+        end(out, conversion);
+        coordinateSystem(out, crs.getCoordinateSystem());
+        end(out, crs);
+    }
+
+    private void geodetic(final StringBuilder out, final GeodeticCRS crs) {
+        begin(out, (crs instanceof GeographicCRS) ? "GeographicCRS" : "GeodeticCRS", crs);
+        out.append(", \"datum\": ");
+        fragment(out, crs.getDatum(), this::datum);
+        coordinateSystem(out, crs.getCoordinateSystem());
+        end(out, crs);
+    }
+
+    private void datum(final StringBuilder out, final GeodeticDatum datum) {
+        begin(out, "GeodeticReferenceFrame", datum);
+        out.append(", \"ellipsoid\": ");
+        fragment(out, datum.getEllipsoid(), this::ellipsoid);
+        final PrimeMeridian pm = datum.getPrimeMeridian();
+        out.append(", \"prime_meridian\": ");
+        begin(out, null, pm);
+        number(out.append(", \"longitude\": "), pm.getGreenwichLongitude());
+        unit(out.append(", \"unit\": "), pm.getAngularUnit());
+        end(out, pm);
+        end(out, datum);
+    }
+
+    private void ellipsoid(final StringBuilder out, final Ellipsoid ellipsoid) {
+        begin(out, null, ellipsoid);
+        if (ellipsoid.isSphere()) {
+            number(out.append(", \"radius\": "), ellipsoid.getSemiMajorAxis());
+        } else {
+            number(out.append(", \"semi_major_axis\": "), ellipsoid.getSemiMajorAxis());
+            if (ellipsoid.isIvfDefinitive()) {
+                number(out.append(", \"inverse_flattening\": "), ellipsoid.getInverseFlattening());
+            } else {
+                number(out.append(", \"semi_minor_axis\": "), ellipsoid.getSemiMinorAxis());
+            }
+        }
+        unit(out.append(", \"unit\": "), ellipsoid.getAxisUnit());
+        end(out, ellipsoid);
+    }
+
+    /**
+     * Appends the coordinate system property.
+     */
+    private static void coordinateSystem(final StringBuilder out, final CoordinateSystem cs) {
+        final String subtype;
+        if      (cs instanceof EllipsoidalCS) subtype = "ellipsoidal";
+        else if (cs instanceof SphericalCS)   subtype = "spherical";
+        else if (cs instanceof CartesianCS)   subtype = "Cartesian";
+        else                                  subtype = "unknown";
+        out.append(", \"coordinate_system\": {\"subtype\": \"").append(subtype).append("\", \"axis\": [");
+        for (int i=0; i<cs.getDimension(); i++) {
+            final CoordinateSystemAxis axis = cs.getAxis(i);
+            if (i != 0) out.append(", ");
+            out.append("{\"name\": ").append(Metrics.quote(axis.getName().getCode()))
+               .append(", \"abbreviation\": ").append(Metrics.quote(axis.getAbbreviation()))
+               .append(", \"direction\": ").append(Metrics.quote(axis.getDirection().identifier()));
+            unit(out.append(", \"unit\": "), axis.getUnit()).append('}');
+        }
+        out.append("]}");
+    }
+}
@@ -16,37 +16,298 @@
  */
 package planetlab.wkt;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.sis.util.ComparisonMode;
 
 
 /**
- * Executes the conversion of CSV files to WKT.
+ * Executes the conversion of CSV files to WKT. Usage:
  *
- * The {@link #DIRECTORY} variable should be set before to execute this class.
+ * <pre>java planetlab.wkt.Main [options] directory...</pre>
+ *
+ * where each directory contains the {@code ellipsoid.csv}, {@code datum.csv}, {@code planetodetic.csv}
+ * and {@code projection.csv} files. Options are:
+ *
+ * <ul>
+ *   <li>{@code --output <file>}: output file, {@code wkt.txt} in the directory by default.
+ *       A name ending with {@code ".gz"} causes compressed output.</li>
+ *   <li>{@code --threads <n>}: number of threads for parsing each CSV file and formatting WKT. Default is 1.</li>
+ *   <li>{@code --buffer-size <bytes>}: size of the output buffer.</li>
+ *   <li>{@code --incremental}: rebuild only the rows that changed since the previous run, together with the
+ *       rows depending on them. Hashes and WKT of each run are saved in {@code wkt.cache} in the directory.</li>
+ *   <li>{@code --streaming}: write projected CRSs as soon as they are created instead of keeping them
+ *       in memory. Memory usage then depends only on the size of ellipsoid, datum and planetodetic files.
+ *       Projected CRSs can not be included in a snapshot or used as transformation source or target.</li>
+ *   <li>{@code --export <format>=<file>}: write the same objects in another format, in the same pass.
+ *       Formats are {@code wkt2}, {@code wkt2-simplified}, {@code wkt1} and {@code json}.
+ *       This option can be repeated for different formats.</li>
+ *   <li>{@code --store <directory>}: also write the WKT in shards per authority and body,
+ *       with an index for reading a single WKT by code (see {@link ShardedStore}).</li>
+ *   <li>{@code --snapshot <file>}: write a binary snapshot of all resolved objects (see {@link Snapshot}).</li>
+ *   <li>{@code --summary <file>}: JSON file of counters and timers of each stage,
+ *       {@code summary.json} in the directory by default.</li>
+ *   <li>{@code --points <file>}, {@code --transformed <file>}, {@code --source <key>}, {@code --target <key>}:
+ *       transform the points of the given file from the source CRS to the target CRS after the conversion.
+ *       Keys are {@code "authority:version:code"} of planetodetic or projected CRSs.
+ *       See {@link PointTransformer} for the file formats.</li>
+ *   <li>{@code --serve <port>}: instead of writing files, serve the CRSs on the given local port
+ *       (0 for any free port) until the process is stopped. See {@link CRSServer} for the requests.
+ *       The {@code --cache-size <n>} option sets the maximal number of responses to cache.</li>
+ *   <li>{@code --watch}: after the conversion, keep the JVM running and convert again after each change in
+ *       the CSV files. Only the rows that changed are rebuilt, as with {@code --incremental} but without
+ *       reading the cache file and warming up Apache SIS again.</li>
+ *   <li>{@code --verify <mode>}: after the conversion, parse back the WKT of the main output on {@code --threads}
+ *       threads and compare with the created objects. The mode is the strictness of the comparison: {@code strict},
+ *       {@code by_contract}, {@code ignore_metadata}, {@code approximate} or {@code allow_variant}. Shards of the
+ *       output which did not change since their last successful verification, according their hash saved in
+ *       {@code wkt.verified} in the directory, are skipped. The exit code is {@value #MISMATCH} if an object
+ *       does not match.
+ *       Can not be used in streaming mode. See {@link RoundTripVerifier}.</li>
+ *   <li>{@code --manifest <file>}: convert the directories listed in the given file, one per line,
+ *       in addition to the directories given on the command line.</li>
+ *   <li>{@code --jobs <n>}: number of directories converted concurrently when there is many directories.
+ *       Default is the number of processors divided by the number of threads. See {@link BatchRunner}.</li>
+ * </ul>
+ *
+ * When there is many directories, the summary of each directory is written in that directory,
+ * and the {@code --summary} option sets the file of the combined summary ({@code batch-summary.json}
+ * by default). Options writing a single file or serving a single directory can not be used in that case.
+ *
+ * <p>The exit code is 1 for invalid arguments or if the conversion of a single directory failed,
+ * {@value #FAILED} if the conversion of some directories failed, otherwise {@value #MISMATCH}
+ * if the verification found objects that do not match in any directory.</p>
  */
 public final class Main {
     /**
-     * Defines here the home directory where are located files.
+     * Name of the file where to save the hashes and WKT of each run in incremental mode.
      */
-    private static final String DIRECTORY = "/path/to/my/directory";
+    private static final String CACHE = "wkt.cache";
 
-    public static void main(String[] args) throws Exception {
-        System.setErr(System.out);
+    /**
+     * Name of the file where to save the hashes of the shards verified without mismatch.
+     */
+    static final String VERIFIED = "wkt.verified";
 
-        final Path dir = Paths.get(DIRECTORY);
-        final EllipsoidParser ellipsoids = new EllipsoidParser();
-        ellipsoids.read(dir.resolve("ellipsoid.csv"));
+    /**
+     * Name of the default JSON file where to write counters and timers of each stage.
+     */
+    static final String SUMMARY = "summary.json";
 
-        final DatumParser datums = new DatumParser(ellipsoids);
-        datums.read(dir.resolve("datum.csv"));
+    /**
+     * Name of the default JSON file where to write the combined summary of many directories.
+     */
+    private static final String BATCH_SUMMARY = "batch-summary.json";
 
-        final PlanetodeticParser planetodetics = new PlanetodeticParser(datums);
-        planetodetics.read(dir.resolve("planetodetic.csv"));
+    /**
+     * Exit code when the conversion of some directories failed.
+     */
+    private static final int FAILED = 2;
 
-        final ProjectedParser projected = new ProjectedParser(planetodetics);
-        projected.read(dir.resolve("projection.csv"));
+    /**
+     * Exit code when the verification found objects that do not match.
+     */
+    private static final int MISMATCH = 3;
 
-        Parser.save(dir.resolve("wkt.txt"), planetodetics, projected);
+    /**
+     * Number of threads handling HTTP requests in server mode.
+     */
+    private static final int HTTP_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Time without change in CSV files to wait before a new conversion in watch mode, in milliseconds.
+     */
+    private static final long WATCH_DELAY = 200;
+
+    public static void main(String[] args) throws Exception {
+        final List<Path> directories = new ArrayList<>();
+        Path output = null, snapshot = null, summary = null, points = null, transformed = null, store = null;
+        String source = null, target = null;
+        ComparisonMode verify = null;
+        final Map<Encoding,Path> exports = new EnumMap<>(Encoding.class);
+        int parallelism = 1, bufferSize = WKTWriter.DEFAULT_BUFFER_SIZE, port = -1, cacheSize = 1000, jobs = 0;
+        boolean incremental = false, streaming = false, watch = false;
+        try {
+            for (int i=0; i<args.length; i++) {
+                final String arg = args[i];
+                switch (arg) {
+                    case "--output":      output      = Paths.get(value(args, ++i)); break;
+                    case "--threads":     parallelism = Integer.parseInt(value(args, ++i)); break;
+                    case "--buffer-size": bufferSize  = Integer.parseInt(value(args, ++i)); break;
+                    case "--incremental": incremental = true; break;
+                    case "--streaming":   streaming   = true; break;
+                    case "--watch":       watch       = true; break;
+                    case "--snapshot":    snapshot    = Paths.get(value(args, ++i)); break;
+                    case "--store":       store       = Paths.get(value(args, ++i)); break;
+                    case "--summary":     summary     = Paths.get(value(args, ++i)); break;
+                    case "--export": {
+                        final String value = value(args, ++i);
+                        final int split = value.indexOf('=');
+                        if (split <= 0) {
+                            throw new IllegalArgumentException("Expected format=file but got " + value);
+                        }
+                        exports.put(Encoding.parse(value.substring(0, split)), Paths.get(value.substring(split + 1)));
+                        break;
+                    }
+                    case "--source":      source      = value(args, ++i); break;
+                    case "--target":      target      = value(args, ++i); break;
+                    case "--points":      points      = Paths.get(value(args, ++i)); break;
+                    case "--transformed": transformed = Paths.get(value(args, ++i)); break;
+                    case "--serve":       port        = Integer.parseInt(value(args, ++i)); break;
+                    case "--cache-size":  cacheSize   = Integer.parseInt(value(args, ++i)); break;
+                    case "--verify":      verify      = ComparisonMode.valueOf(value(args, ++i).toUpperCase(Locale.ROOT).replace('-', '_')); break;
+                    case "--jobs":        jobs        = Integer.parseInt(value(args, ++i)); break;
+                    case "--manifest":    directories.addAll(BatchRunner.manifest(Paths.get(value(args, ++i)))); break;
+                    default: {
+                        if (arg.startsWith("--")) {
+                            throw new IllegalArgumentException("Unexpected argument: " + arg);
+                        }
+                        directories.add(Paths.get(arg));
+                    }
+                }
+            }
+            if (directories.isEmpty()) {
+                throw new IllegalArgumentException("Missing directory.");
+            }
+            if (parallelism < 1 || bufferSize < 1 || jobs < 0) {
+                throw new IllegalArgumentException("Number of threads, number of jobs and buffer size shall be positive.");
+            }
+            if (directories.size() > 1 && (output != null || snapshot != null || store != null || !exports.isEmpty()
+                    || points != null || port >= 0 || watch))
+            {
+                throw new IllegalArgumentException("Many directories can not be combined with --output, --export, --store,"
+                        + " --snapshot, --points, --serve or --watch.");
+            }
+            if (streaming && (snapshot != null || verify != null)) {
+                throw new IllegalArgumentException("Snapshot and verification are not available in streaming mode.");
+            }
+            if (points != null && (source == null || target == null || transformed == null)) {
+                throw new IllegalArgumentException("Transformation of points requires --source, --target and --transformed.");
+            }
+            if (watch && (points != null || port >= 0)) {
+                throw new IllegalArgumentException("Watch mode can not be combined with --points or --serve.");
+            }
+        } catch (IllegalArgumentException e) {      // Include NumberFormatException.
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java planetlab.wkt.Main [--output file] [--threads n] [--buffer-size bytes]"
+                             + " [--incremental] [--streaming] [--watch] [--export format=file]... [--store directory] [--snapshot file] [--summary file]"
+                             + " [--points file --transformed file --source key --target key]"
+                             + " [--serve port [--cache-size n]] [--verify mode] [--manifest file] [--jobs n] directory...");
+            System.err.println("Exit code is 1 for invalid arguments, " + FAILED + " if the conversion of some directories failed"
+                             + " and " + MISMATCH + " if the verification found objects that do not match.");
+            System.exit(1);
+            return;
+        }
+        if (directories.size() > 1) {
+            if (jobs == 0) {
+                jobs = Math.max(1, Runtime.getRuntime().availableProcessors() / parallelism);
+            }
+            final int threads = parallelism, size = bufferSize;
+            final boolean cached = incremental, stream = streaming;
+            final ComparisonMode strictness = verify;
+            final BatchRunner runner = new BatchRunner(directories, jobs, (pipeline) -> {
+                pipeline.parallelism = threads;
+                pipeline.bufferSize  = size;
+                pipeline.streaming   = stream;
+                if (cached) {
+                    pipeline.cache = pipeline.directory.resolve(CACHE);
+                }
+                if (strictness != null) {
+                    pipeline.verify   = strictness;
+                    pipeline.verified = pipeline.directory.resolve(VERIFIED);
+                }
+            });
+            if (runner.run((summary != null) ? summary : Paths.get(BATCH_SUMMARY)) != 0) {
+                System.exit(FAILED);
+            }
+            if (runner.mismatches() != 0) {
+                System.exit(MISMATCH);
+            }
+            return;
+        }
+        final Path directory = directories.get(0);
+        if (port >= 0) {
+            final CRSServer server = new CRSServer(directory, parallelism, cacheSize);
+            port = server.start(port, HTTP_THREADS);
+            System.err.println("Serving CRSs from " + directory + " on http://localhost:" + port + "/crs");
+            return;
+        }
+        final Pipeline pipeline = new Pipeline(directory);
+        if (output != null) {
+            pipeline.output = output;
+        }
+        pipeline.parallelism = parallelism;
+        pipeline.bufferSize  = bufferSize;
+        pipeline.snapshot    = snapshot;
+        pipeline.streaming   = streaming;
+        pipeline.store       = store;
+        pipeline.exports.putAll(exports);
+        if (incremental) {
+            pipeline.cache = directory.resolve(CACHE);
+        }
+        pipeline.warm = watch;
+        if (verify != null) {
+            pipeline.verify   = verify;
+            pipeline.verified = directory.resolve(VERIFIED);
+        }
+        final Path report = (summary != null) ? summary : directory.resolve(SUMMARY);
+        /*
+         * In watch mode, the directory is registered before the first conversion,
+         * so changes done during that conversion cause a new conversion.
+         */
+        final DirectoryWatcher watcher = watch ? new DirectoryWatcher(directory, WATCH_DELAY, (files) -> {
+            final long start = System.nanoTime();
+            pipeline.run();
+            report(pipeline.metrics(), pipeline.elapsedTime(), report);
+            System.err.printf("Converted changes in %s in %d ms.%n", files, (System.nanoTime() - start) / 1000000);
+        }) : null;
+        pipeline.run();
+
+        Metrics[] metrics = pipeline.metrics();
+        long elapsed = pipeline.elapsedTime();
+        if (points != null) {
+            final PointTransformer transformer = new PointTransformer(pipeline.crs(source), pipeline.crs(target), parallelism);
+            transformer.transform(points, transformed);
+            metrics = Arrays.copyOf(metrics, metrics.length + 1);
+            metrics[metrics.length - 1] = transformer.metrics;
+            elapsed += transformer.metrics.elapsedTime;
+            System.err.printf("Transformed %d points at %.0f points/s.%n", transformer.metrics.read.sum(), transformer.throughput());
+        }
+        report(metrics, elapsed, report);
+        if (watcher != null) {
+            System.err.println("Watching " + directory + " for changes.");
+            watcher.run();
+        } else if (pipeline.mismatches() != 0) {
+            System.exit(MISMATCH);
+        }
+    }
+
+    /**
+     * Prints the given counters and timers, and writes them in the given JSON file.
+     *
+     * @param  elapsed  wall-clock time of all stages, in nanoseconds.
+     */
+    private static void report(final Metrics[] metrics, final long elapsed, final Path summary) throws IOException {
+        for (final Metrics stage : metrics) {
+            stage.print(System.err);
+        }
+        Metrics.write(summary, elapsed, metrics);
+    }
+
+    /**
+     * Returns the value of the option at the given index.
+     */
+    private static String value(final String[] args, final int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
     }
 }
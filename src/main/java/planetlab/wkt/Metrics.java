@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and timers of a conversion stage (one parser, or the writing of WKT).
+ * All counters can be incremented concurrently by worker threads.
+ */
+final class Metrics {
+    /**
+     * Name of the stage, for example the parser class name.
+     */
+    final String stage;
+
+    /**
+     * Number of rows read, rows for which the object creation has been skipped because unchanged
+     * since the previous run, objects accepted in the results, and rows ignored because of a duplicated key.
+     */
+    final LongAdder read, skipped, accepted, duplicated;
+
+    /**
+     * Number of rows rejected for each reason.
+     */
+    private final Map<String,LongAdder> rejected;
+
+    /**
+     * Time spent in factory calls, WKT formatting, coordinate transformations and input/output operations,
+     * in nanoseconds. Time spent by worker threads is summed, so those values may exceed the elapsed time.
+     */
+    final LongAdder factoryTime, formatTime, transformTime, ioTime;
+
+    /**
+     * Elapsed time of the whole stage, in nanoseconds.
+     */
+    volatile long elapsedTime;
+
+    Metrics(final String stage) {
+        this.stage    = stage;
+        read          = new LongAdder();
+        skipped       = new LongAdder();
+        accepted      = new LongAdder();
+        duplicated    = new LongAdder();
+        rejected      = new ConcurrentSkipListMap<>();
+        factoryTime   = new LongAdder();
+        formatTime    = new LongAdder();
+        transformTime = new LongAdder();
+        ioTime        = new LongAdder();
+    }
+
+    /**
+     * Counts a row rejected for the given reason.
+     */
+    void reject(final String reason) {
+        rejected.computeIfAbsent(reason, (k) -> new LongAdder()).increment();
+    }
+
+    /**
+     * Returns the total number of rejected rows.
+     */
+    long rejected() {
+        return rejected.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Prints a human-readable summary of this stage.
+     */
+    void print(final PrintStream out) {
+        out.println(stage + ": " + read + " rows read, " + accepted + " accepted, " + skipped + " unchanged, "
+                + duplicated + " duplicated, " + rejected() + " rejected in " + millis(elapsedTime) + " ms.");
+        rejected.forEach((reason, count) -> out.println("    " + reason + ": " + count));
+    }
+
+    /**
+     * Converts the given duration from nanoseconds to milliseconds.
+     */
+    static long millis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Appends this stage as a JSON object, starting with the given indentation.
+     */
+    void appendJSON(final StringBuilder out, final String indent) {
+        out.append(indent).append("{\"stage\": ").append(quote(stage))
+           .append(", \"read\": ").append(read)
+           .append(", \"accepted\": ").append(accepted)
+           .append(", \"skipped\": ").append(skipped)
+           .append(", \"duplicated\": ").append(duplicated)
+           .append(", \"rejected\": {");
+        String separator = "";
+        for (final Map.Entry<String,LongAdder> entry : rejected.entrySet()) {
+            out.append(separator).append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ", ";
+        }
+        out.append("}, \"factoryMillis\": ").append(millis(factoryTime.sum()))
+           .append(", \"formatMillis\": ").append(millis(formatTime.sum()))
+           .append(", \"transformMillis\": ").append(millis(transformTime.sum()))
+           .append(", \"ioMillis\": ").append(millis(ioTime.sum()))
+           .append(", \"elapsedMillis\": ").append(millis(elapsedTime))
+           .append('}');
+    }
+
+    /**
+     * Returns the given text as a JSON string.
+     */
+    static String quote(final String text) {
+        final StringBuilder buffer = new StringBuilder(text.length() + 2).append('"');
+        for (int i=0; i<text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '"':  buffer.append("\\\""); break;
+                case '\\': buffer.append("\\\\"); break;
+                case '\n': buffer.append("\\n");  break;
+                case '\r': buffer.append("\\r");  break;
+                case '\t': buffer.append("\\t");  break;
+                default: {
+                    if (c < ' ') {
+                        buffer.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buffer.append(c);
+                    }
+                }
+            }
+        }
+        return buffer.append('"').toString();
+    }
+
+    /**
+     * Writes a JSON summary of the given stages. Since stages may overlap, the sum of their elapsed times
+     * is written as {@code "cumulatedMillis"} while {@code "elapsedMillis"} is the given wall-clock time.
+     *
+     * @param  elapsed  wall-clock time of all stages, in nanoseconds.
+     */
+    static void write(final Path file, final long elapsed, final Metrics... stages) throws IOException {
+        final StringBuilder out = new StringBuilder("{\n  \"stages\": [\n");
+        String separator = "";
+        long cumulated = 0;
+        for (final Metrics stage : stages) {
+            out.append(separator);
+            stage.appendJSON(out, "    ");
+            separator = ",\n";
+            cumulated += stage.elapsedTime;
+        }
+        out.append("\n  ],\n  \"cumulatedMillis\": ").append(millis(cumulated))
+           .append(",\n  \"elapsedMillis\": ").append(millis(elapsed)).append("\n}\n");
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.append(out);
+        }
+    }
+}
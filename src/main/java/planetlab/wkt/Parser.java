@@ -15,24 +15,28 @@
  */
 package planetlab.wkt;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
 import org.apache.sis.internal.referencing.ReferencingFactoryContainer;
 import org.apache.sis.internal.util.CollectionsExt;
-import org.apache.sis.io.wkt.WKTFormat;
 import org.apache.sis.referencing.ImmutableIdentifier;
-import org.apache.sis.util.ArraysExt;
-import org.apache.sis.util.CharSequences;
 import org.apache.sis.util.collection.BackingStoreException;
+import org.apache.sis.util.collection.WeakHashSet;
 import org.opengis.referencing.IdentifiedObject;
 import org.opengis.referencing.ReferenceIdentifier;
 import org.opengis.util.FactoryException;
@@ -49,9 +53,176 @@ abstract class Parser<T extends IdentifiedObject> extends ReferencingFactoryCont
 
     private final Map<String,T> results;
 
+    /**
+     * Canonical instances of objects shared by all parsers. Equal objects created for different rows
+     * or by different parsers are replaced by a single instance, which reduces memory usage when the
+     * whole registry is kept in memory and makes later equality checks faster. Entries are discarded
+     * when no longer referenced.
+     */
+    private static final WeakHashSet<Object> POOL = new WeakHashSet<>(Object.class);
+
+    /**
+     * Number of chunks per thread when parsing in parallel. Having more chunks than threads
+     * helps to balance the work when some parts of the file are more costly than others.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Approximate number of characters per chunk when parsing in parallel in streaming mode.
+     * Objects of a chunk are retained until the chunk is written, so chunks shall be small.
+     */
+    private static final int STREAMING_CHUNK_LENGTH = 256 * 1024;
+
+    /**
+     * Rows accepted by a worker, in the order they were found in its chunk.
+     * This is {@code null} for the parser doing the final merge.
+     */
+    private List<Row<T>> created;
+
+    /**
+     * Hashes and WKT of the previous run, or {@code null} if the conversion is not incremental.
+     */
+    private ConversionCache cache;
+
+    /**
+     * Counters and timers of this parser, shared with its forks.
+     */
+    private Metrics metrics;
+
+    /**
+     * Reason why the last invocation of {@link #create(RowTable, int)} returned {@code null}, or {@code null} if not specified.
+     */
+    private String rejection;
+
+    /**
+     * The file loaded by this parser, or {@code null} if none. Used for reporting only.
+     */
+    private Path source;
+
+    /**
+     * Where to write objects as soon as they are created, or {@code null} if objects are kept in {@link #results}.
+     */
+    private WKTWriter[] sinks;
+
+    /**
+     * Keys of objects written to the {@linkplain #sinks}, for detecting duplicated entries in streaming mode.
+     */
+    private Set<String> written;
+
+    /**
+     * Hash of each accepted row, including the hash of the upstream row it references.
+     * Used by downstream parsers in incremental mode, {@code null} otherwise.
+     */
+    private Map<String,Long> hashes;
+
+    /**
+     * Rows read by this parser. A row is kept only while its object is created, or if the creation
+     * has been deferred. Columns are read from this table by {@link #create(RowTable, int)}.
+     */
+    private final RowTable rows;
+
+    /**
+     * Index in {@link #rows} of unchanged rows in incremental mode. The objects of those rows are created
+     * only if requested by a downstream parser. Their value in {@link #results} is null, and the objects
+     * are stored in {@link #resolved} when created.
+     */
+    private Map<String,Integer> deferred;
+
+    /**
+     * Objects created from {@link #deferred} rows after the read phase. Those objects are not stored
+     * in {@link #results}, which is never modified after the read phase and can therefore be read
+     * concurrently without lock.
+     */
+    private Map<String,T> resolved;
+
+    /**
+     * A row accepted by a worker, to be merged in the results of the parent parser.
+     */
+    private static final class Row<T> {
+        final String key;
+        final long hash;
+        final T object;
+
+        /**
+         * Index of the deferred row in the rows of the worker, or -1 if the object has been created.
+         */
+        final int deferred;
+
+        Row(final String key, final long hash, final T object, final int deferred) {
+            this.key      = key;
+            this.hash     = hash;
+            this.object   = object;
+            this.deferred = deferred;
+        }
+    }
+
     Parser() {
         properties = new HashMap<>();
         results = new LinkedHashMap<>();
+        metrics = new Metrics(getClass().getSimpleName());
+        rows    = new RowTable(this::kind);
+    }
+
+    /**
+     * Returns a new parser of the same kind, sharing the same upstream parsers and coordinate systems,
+     * but with its own factory container and property map. Used for parsing chunks in worker threads.
+     */
+    abstract Parser<T> fork();
+
+    /**
+     * Enables incremental conversion using the given cache of a previous run.
+     * Shall be invoked before {@link #read(Path)}.
+     */
+    final void setCache(final ConversionCache cache) {
+        this.cache = cache;
+        hashes   = (cache != null) ? new HashMap<>() : null;
+        deferred = (cache != null) ? new HashMap<>() : null;
+        resolved = (cache != null) ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Returns the counters and timers of this parser.
+     */
+    final Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns how the values of the given column are stored in the table of rows. The default implementation
+     * stores authority and version as dictionary words, and other columns as texts. Subclasses shall override
+     * this method for numeric columns and for columns having few distinct values.
+     */
+    RowTable.Kind kind(final int column) {
+        return (column <= 1) ? RowTable.Kind.WORD : RowTable.Kind.TEXT;
+    }
+
+    /**
+     * Returns the hash of the upstream row referenced by the given row, or 0 if none.
+     * Subclasses shall override this method if their {@link #create(RowTable, int)} method
+     * invokes {@link #get(String)} on an upstream parser.
+     */
+    long dependency(final RowTable rows, final int row) {
+        return 0;
+    }
+
+    /**
+     * Returns the hash of the row for the given key, including the hash of its dependencies.
+     * Returns 0 if unknown or if the conversion is not incremental.
+     */
+    final long hash(final String code) {
+        if (hashes != null) {
+            final Long hash = hashes.get(code);
+            if (hash != null) return hash;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a canonical instance of the given object, which may be a string, an identifier,
+     * a coordinate system, <i>etc.</i> Returns {@code null} if the given object is null.
+     */
+    static <E> E unique(final E object) {
+        return (object != null) ? POOL.unique(object) : null;
     }
 
     static Map<String,?> name(final String name) {
@@ -65,51 +236,310 @@ abstract class Parser<T extends IdentifiedObject> extends ReferencingFactoryCont
      *   [2]: code
      *   [3]: name
      */
-    final Map<String,?> properties(final String[] columns) {
+    final Map<String,?> properties(final RowTable rows, final int row) {
         properties.clear();
-        properties.put(IdentifiedObject.IDENTIFIERS_KEY, new ImmutableIdentifier(null, columns[0], columns[2], columns[1], null));
-        properties.put(IdentifiedObject.NAME_KEY, columns[3]);
+        properties.put(IdentifiedObject.IDENTIFIERS_KEY, unique(new ImmutableIdentifier(null,
+                unique(rows.text(row, 0)), unique(rows.text(row, 2)), unique(rows.text(row, 1)), null)));
+        properties.put(IdentifiedObject.NAME_KEY, unique(rows.text(row, 3)));
         return properties;
     }
 
+    /**
+     * Enables streaming mode: objects will be written to the given writers as soon as they are created,
+     * in the order of the CSV file, and not kept in memory. Only the keys are retained for detecting
+     * duplicated entries, so {@link #get(String)} and {@link #results()} will find nothing. This mode
+     * is for parsers whose objects are not referenced by other parsers, such as {@link ProjectedParser}.
+     * It shall be enabled before to read the file.
+     */
+    final void stream(final WKTWriter... outs) {
+        sinks   = outs;
+        written = new HashSet<>();
+        for (final WKTWriter out : outs) {
+            if (isCached(out)) {
+                out.cache = cache;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the WKT written by the given writer is saved in the cache for incremental conversion.
+     * Only the default encoding is cached.
+     */
+    private boolean isCached(final WKTWriter out) {
+        return (cache != null) && out.encoding == Encoding.WKT2;
+    }
+
+    /**
+     * Reads all records of the given CSV file, skipping the header line.
+     */
     public final void read(final Path file) throws IOException, FactoryException {
-        try (Stream<String> lines = Files.lines(file)) {
-            lines.skip(1).forEach(this);
-        } catch (UncheckedIOException e) {
-            throw e.getCause();
-        } catch (BackingStoreException e) {
-            throw e.unwrapOrRethrow(FactoryException.class);
+        read(file, 1);
+    }
+
+    /**
+     * Reads all records of the given CSV file using the given number of threads.
+     * The file is split in chunks aligned on record boundaries, and each chunk is parsed by
+     * a {@linkplain #fork() fork} of this parser. Results are merged in chunk order, so the
+     * content and iteration order of results are the same than a sequential read.
+     */
+    public final void read(final Path file, final int parallelism) throws IOException, FactoryException {
+        parse(load(file), parallelism);
+    }
+
+    /**
+     * Reads and decodes the given CSV file, then skips its header line. This method does not create
+     * any object, so it can be invoked while the parsers this parser depends on are still running.
+     */
+    final CSVTokenizer load(final Path file) throws IOException {
+        final long start = System.nanoTime();
+        source = file;
+        final CSVTokenizer records = CSVTokenizer.open(file);
+        records.next();                         // Skip the header line.
+        final long time = System.nanoTime() - start;
+        metrics.ioTime.add(time);
+        metrics.elapsedTime += time;
+        return records;
+    }
+
+    /**
+     * Creates objects for all remaining records of the given file, which shall have been {@linkplain #load loaded}
+     * by this parser. This method shall be invoked only after the parsers this parser depends on have completed.
+     */
+    final void parse(final CSVTokenizer records, final int parallelism) throws IOException, FactoryException {
+        final Events.Stage event = new Events.Stage();
+        event.begin();
+        final long start = System.nanoTime();
+        if (parallelism <= 1) {
+            while (records.next()) {
+                add(records);
+            }
+        } else {
+            read(records, parallelism);
+        }
+        metrics.elapsedTime += System.nanoTime() - start;
+        event.end();
+        if (event.shouldCommit()) {
+            event.stage      = metrics.stage;
+            event.file       = String.valueOf(source);
+            event.read       = metrics.read.sum();
+            event.accepted   = metrics.accepted.sum();
+            event.rejected   = metrics.rejected();
+            event.duplicated = metrics.duplicated.sum();
+            event.commit();
         }
     }
 
+    /**
+     * Reads all remaining records using the given number of threads.
+     */
+    private void read(final CSVTokenizer records, final int parallelism) throws IOException, FactoryException {
+        final int window = parallelism * CHUNKS_PER_THREAD;
+        int count = window;
+        if (sinks != null) {
+            count = Math.max(count, records.remaining() / STREAMING_CHUNK_LENGTH);
+        }
+        final int[] splits = records.split(count);
+        final ArrayDeque<Future<Parser<T>>> pending = new ArrayDeque<>(window);
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (int i=1; i<splits.length; i++) {
+                final CSVTokenizer chunk = records.subset(splits[i-1], splits[i]);
+                if (pending.size() >= window) {
+                    merge(pending.removeFirst().get());
+                }
+                pending.addLast(pool.submit(() -> {
+                    final Parser<T> worker = fork();
+                    worker.created = new ArrayList<>();
+                    worker.cache   = cache;
+                    worker.metrics = metrics;
+                    while (chunk.next()) {
+                        worker.add(chunk);
+                    }
+                    return worker;
+                }));
+            }
+            while (!pending.isEmpty()) {
+                merge(pending.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof FactoryException) throw (FactoryException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new FactoryException(cause);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Adds the rows created by a worker to the results, or writes them in streaming mode.
+     * Deferred rows are copied from the table of the worker to the table of this parser.
+     */
+    private void merge(final Parser<T> worker) throws IOException, FactoryException {
+        for (final Row<T> row : worker.created) {
+            final int index = (row.deferred >= 0) ? rows.add(worker.rows, row.deferred) : -1;
+            put(row.key, row.hash, row.object, index);
+        }
+    }
+
+    /**
+     * Parses a single CSV record. The given line may contain line separators inside quoted fields.
+     */
     @Override
     public final void accept(final String line) {
-        if (!line.isEmpty() && line.charAt(0) != '#') {
-            String[] columns = (String[]) CharSequences.split(line, ',');
-            for (int i=columns.length; --i>=0;) {
-                if (columns[i].endsWith("\"")) {
-                    final StringBuilder buffer = new StringBuilder(columns[i]);
-                    buffer.setLength(buffer.length() - 1);  // Remove last quote.
-                    final int end = i;
-                    do buffer.insert(0, ", ").insert(0, columns[--i]);
-                    while (buffer.charAt(0) != '"');
-                    buffer.deleteCharAt(0);
-                    columns[i] = buffer.toString();
-                    columns = ArraysExt.remove(columns, i+1, end - i);
-                }
+        final CSVTokenizer records = new CSVTokenizer(line.toCharArray(), 0, line.length());
+        if (records.next()) try {
+            add(records);
+        } catch (IOException | FactoryException e) {
+            throw new BackingStoreException(e);
+        }
+    }
+
+    /**
+     * Creates the object for the current record and adds it to the results.
+     * In incremental mode, the creation of unchanged rows is deferred.
+     */
+    private void add(final CSVTokenizer records) throws IOException, FactoryException {
+        final int row = rows.add(records);
+        metrics.read.increment();
+        long hash = 0;
+        if (cache != null) {
+            final String key = key(row);
+            hash = records.hash() * 31 + dependency(rows, row);
+            if (cache.isUnchanged(metrics.stage, key, hash)) {
+                metrics.skipped.increment();
+                add(key, hash, null, row);
+                return;
+            }
+        }
+        final T object = create(row);
+        if (object == null) {
+            final String reason = (rejection != null) ? rejection : "Unresolved or unsupported reference";
+            metrics.reject(reason);
+            rejected(key(row), reason);
+        }
+        rows.removeLast();
+        if (object != null) {
+            add(null, hash, object, -1);
+        }
+    }
+
+    /**
+     * Returns the {@code "authority:version:code"} key of the given row.
+     */
+    private String key(final int row) {
+        return rows.text(row, 0) + ':' + rows.text(row, 1) + ':' + rows.text(row, 2);
+    }
+
+    /**
+     * Records that the given reason as the cause of the next {@code null} value returned by {@link #create(RowTable, int)}.
+     * Subclasses can invoke this method as {@code return reject("Some reason")}.
+     */
+    final T reject(final String reason) {
+        rejection = reason;
+        return null;
+    }
+
+    /**
+     * Emits an event for a row for which no object has been added to the results.
+     */
+    private void rejected(final String key, final String reason) {
+        final Events.Rejection event = new Events.Rejection();
+        if (event.shouldCommit()) {
+            event.stage  = metrics.stage;
+            event.key    = key;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds the given row to the results, or to the list of created rows if this parser is a worker.
+     *
+     * @param  row  index of the deferred row in {@link #rows}, or -1 if the object has been created.
+     */
+    private void add(final String key, final long hash, final T object, final int row)
+            throws IOException, FactoryException
+    {
+        if (created != null) {
+            created.add(new Row<>(key, hash, object, row));
+        } else {
+            put(key, hash, object, row);
+        }
+    }
+
+    /**
+     * Adds the given object to the results, unless an object with the same identifier already exists.
+     * The key is computed from the object identifier, unless the object creation has been deferred.
+     * A deferred row is the last row of {@link #rows}, and is removed if not kept for later creation.
+     *
+     * @param  row  index of the deferred row in {@link #rows}, or -1 if the object has been created.
+     */
+    private void put(String key, final long hash, final T object, final int row)
+            throws IOException, FactoryException
+    {
+        if (object != null) {
+            final ReferenceIdentifier id = CollectionsExt.first(object.getIdentifiers());
+            key = nonNull(id.getCodeSpace()) + ':' + nonNull(id.getVersion()) + ':' + nonNull(id.getCode());
+        }
+        if (sinks != null) {
+            stream(key, hash, object, row);
+            if (row >= 0) rows.removeLast();
+            return;
+        }
+        if (results.containsKey(key)) {
+            metrics.duplicated.increment();
+            rejected(key, "Duplicated entry");
+            if (row >= 0) rows.removeLast();
+            return;
+        }
+        results.put(key, object);
+        metrics.accepted.increment();
+        if (cache != null) {
+            if (row >= 0) {
+                deferred.put(key, row);
+            }
+            hashes.put(key, hash);
+            cache.record(metrics.stage, key, hash);
+        }
+    }
+
+    /**
+     * Writes the given object to the sinks, unless an object with the same key has already been written.
+     * In incremental mode, the WKT of an unchanged row is copied from the previous run when available,
+     * and the object is created only if needed by a sink in another encoding.
+     */
+    private void stream(final String key, final long hash, T object, final int row)
+            throws IOException, FactoryException
+    {
+        if (!written.add(key)) {
+            metrics.duplicated.increment();
+            rejected(key, "Duplicated entry");
+            return;
+        }
+        metrics.accepted.increment();
+        String text = null;
+        if (cache != null) {
+            cache.record(metrics.stage, key, hash);
+            if (row >= 0) {
+                text = cache.text(key);
+            }
+        }
+        for (final WKTWriter sink : sinks) {
+            if (text != null && isCached(sink)) {
+                sink.writeText(key, text);
+                continue;
             }
-            final T object;
-            try {
-                object = create(columns);
-            } catch (FactoryException e) {
-                throw new BackingStoreException(e);
+            if (object == null && row >= 0) {
+                final long start = System.nanoTime();
+                object = create(rows, row);
+                metrics.factoryTime.add(System.nanoTime() - start);
             }
             if (object != null) {
-                final ReferenceIdentifier id = CollectionsExt.first(object.getIdentifiers());
-                final String key = nonNull(id.getCodeSpace()) + ':' + nonNull(id.getVersion()) + ':' + nonNull(id.getCode());
-                if (results.putIfAbsent(key, object) != null) {
-                    System.err.println("Duplicated entry: " + id);
-                }
+                sink.write(key, object);
             }
         }
     }
@@ -118,7 +548,27 @@ abstract class Parser<T extends IdentifiedObject> extends ReferencingFactoryCont
         return (value != null) ? value : "";
     }
 
-    protected abstract T create(final String[] columns) throws FactoryException;
+    /**
+     * Creates the object for the given row, or returns {@code null} if the row is rejected.
+     */
+    protected abstract T create(final RowTable rows, final int row) throws FactoryException;
+
+    /**
+     * Creates the object for the given row of this parser and measures the time spent in the factories.
+     * A row having an unparsable value in a numeric column used for creating the object is rejected.
+     */
+    private T create(final int row) throws FactoryException {
+        rejection = null;
+        final long start = System.nanoTime();
+        T object;
+        try {
+            object = create(rows, row);
+        } catch (NumberFormatException e) {
+            object = reject("Unparsable number");
+        }
+        metrics.factoryTime.add(System.nanoTime() - start);
+        return object;
+    }
 
     static double parseDouble(final String[] columns, final int index) {
         if (index < columns.length) {
@@ -130,20 +580,110 @@ abstract class Parser<T extends IdentifiedObject> extends ReferencingFactoryCont
         return Double.NaN;
     }
 
-    final T get(final String code) {
-        return results.get(code);
+    /**
+     * Returns the object for the given key, or {@code null} if none.
+     * In incremental mode, this method creates the object if its creation has been deferred.
+     */
+    final T get(final String code) throws FactoryException {
+        T object = results.get(code);
+        if (object == null && deferred != null) {
+            object = resolved.get(code);
+            if (object == null) {
+                synchronized (deferred) {
+                    object = resolved.get(code);
+                    if (object == null) {
+                        final Integer row = deferred.remove(code);
+                        if (row != null) {
+                            object = create(row);
+                            if (object != null) {
+                                resolved.put(code, object);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Returns all objects created by this parser, in the order they were read.
+     * In incremental mode, this method creates all objects whose creation has been deferred.
+     */
+    final Map<String,T> results() throws FactoryException {
+        if (deferred == null) {
+            return Collections.unmodifiableMap(results);
+        }
+        final Map<String,T> all = new LinkedHashMap<>(results.size() * 2);
+        for (final Map.Entry<String,T> entry : results.entrySet()) {
+            T object = entry.getValue();
+            if (object == null) {
+                object = get(entry.getKey());
+            }
+            if (object != null) {
+                all.put(entry.getKey(), object);
+            }
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    /**
+     * Returns the WKT written in the previous run for the given key if the row did not changed,
+     * or {@code null} if the object needs to be formatted.
+     */
+    private String cachedText(final String key) {
+        if (cache != null) {
+            final Long hash = hashes.get(key);
+            if (hash != null && cache.isUnchanged(metrics.stage, key, hash)) {
+                return cache.text(key);
+            }
+        }
+        return null;
+    }
+
+    static Metrics save(final Path file, final Parser<?>... parsers) throws IOException, FactoryException {
+        return save(file, 1, WKTWriter.DEFAULT_BUFFER_SIZE, parsers);
     }
 
-    static void save(final Path file, final Parser<?>... parsers) throws IOException {
-        try (BufferedWriter out = Files.newBufferedWriter(file)) {
-            final WKTFormat f = new WKTFormat(null, null);
+    /**
+     * Writes the results of all given parsers in WKT format, using the given number of threads for formatting.
+     * Objects are written in the same order regardless the number of threads.
+     *
+     * @return counters and timers of the formatting and writing.
+     */
+    static Metrics save(final Path file, final int parallelism, final int bufferSize, final Parser<?>... parsers)
+            throws IOException, FactoryException
+    {
+        final WKTWriter out = new WKTWriter(file, parallelism, bufferSize);
+        try (out) {
             for (final Parser<?> parser : parsers) {
-                for (Object crs : parser.results.values()) {
-                    if (crs != null) {
-                        out.write(f.format(crs));
-                        out.newLine();
-                        out.newLine();
-                    }
+                parser.write(out);
+            }
+        }
+        return out.metrics;
+    }
+
+    /**
+     * Writes the results of this parser in the writer encoding, after all objects previously given to the writer.
+     * In incremental mode, the WKT of unchanged rows is copied from the previous run if the encoding is WKT 2.
+     */
+    final void write(final WKTWriter out) throws IOException, FactoryException {
+        final boolean cached = isCached(out);
+        if (cached) {
+            out.cache = cache;
+        }
+        for (final Map.Entry<String,T> entry : results.entrySet()) {
+            final String key = entry.getKey();
+            final String text = cached ? cachedText(key) : null;
+            if (text != null) {
+                out.writeText(key, text);
+            } else {
+                T crs = entry.getValue();
+                if (crs == null) {
+                    crs = get(key);
+                }
+                if (crs != null) {
+                    out.write(key, crs);
                 }
             }
         }
@@ -0,0 +1,429 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.sis.util.ComparisonMode;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.util.FactoryException;
+
+
+/**
+ * Conversion of the CSV files of a directory, with stages scheduled according their dependencies.
+ * All files are read and decoded concurrently at the beginning. Then each parser creates its objects
+ * as soon as the parser it depends on has completed (ellipsoids → datums → planetodetic CRSs → projected CRSs).
+ * The WKT of planetodetic CRSs are written while projected CRSs are still being created.
+ *
+ * <p>Options are fields to be set before to invoke {@link #run()}.</p>
+ */
+final class Pipeline {
+    /**
+     * Names of the CSV files in the directory.
+     */
+    static final String ELLIPSOIDS = "ellipsoid.csv", DATUMS = "datum.csv",
+            PLANETODETICS = "planetodetic.csv", PROJECTIONS = "projection.csv";
+
+    /**
+     * Directory of the CSV files.
+     */
+    final Path directory;
+
+    /**
+     * The output file. A name ending with {@code ".gz"} causes compressed output.
+     */
+    Path output;
+
+    /**
+     * Number of threads to use for parsing each CSV file and formatting WKT.
+     * Values greater than 1 enable parallel parsing and formatting.
+     */
+    int parallelism = 1;
+
+    /**
+     * Size of the output buffer, in bytes.
+     */
+    int bufferSize = WKTWriter.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * File where to save hashes and WKT for incremental conversion, or {@code null} for a full conversion.
+     */
+    Path cache;
+
+    /**
+     * File where to write a binary snapshot of all resolved objects, or {@code null} if none.
+     */
+    Path snapshot;
+
+    /**
+     * Directory where to write the WKT of the main output split in shards with an index, or {@code null} if none.
+     * See {@link ShardedStore}.
+     */
+    Path store;
+
+    /**
+     * Additional files where to write the same objects in other formats, written in the same pass.
+     */
+    final Map<Encoding,Path> exports = new EnumMap<>(Encoding.class);
+
+    /**
+     * Whether to write projected CRSs as soon as they are created instead of keeping them in memory.
+     * In this mode, projected CRSs are not available after {@link #run()} and can not be in the snapshot.
+     */
+    boolean streaming;
+
+    /**
+     * Whether to keep the hashes and WKT of each run in memory for the next invocation of {@link #run()}.
+     * This allows to rebuild only the rows that changed between runs in the same JVM, even without {@link #cache}.
+     */
+    boolean warm;
+
+    /**
+     * Hashes and WKT kept in memory from the previous run if {@link #warm} is {@code true}, or {@code null}.
+     */
+    private ConversionCache conversions;
+
+    /**
+     * Strictness of the verification that the main output can be parsed back into objects equal to the
+     * objects created by the parsers, or {@code null} for no verification. Can not be used in streaming mode.
+     * See {@link RoundTripVerifier}.
+     */
+    ComparisonMode verify;
+
+    /**
+     * File where to save the hashes of verified shards, or {@code null} for verifying all shards
+     * (except shards unchanged since a previous run in the same JVM if {@link #warm} is {@code true}).
+     */
+    Path verified;
+
+    /**
+     * The verifier of the current run, kept for the next run if {@link #warm} is {@code true}.
+     */
+    private RoundTripVerifier verifier;
+
+    /**
+     * The parsers of each stage, created by {@link #run()}.
+     */
+    EllipsoidParser ellipsoids;
+    DatumParser datums;
+    PlanetodeticParser planetodetics;
+    ProjectedParser projected;
+
+    /**
+     * Counters and timers of the writing of each output file, available after {@link #run()}.
+     */
+    private Metrics[] saves;
+
+    /**
+     * Number of objects which did not pass the verification in the last run.
+     */
+    private long mismatches;
+
+    /**
+     * Wall-clock time of the last run, in nanoseconds.
+     */
+    private long elapsedTime;
+
+    /**
+     * Creates a pipeline for the CSV files in the given directory.
+     */
+    Pipeline(final Path directory) {
+        this.directory = directory;
+        output = directory.resolve("wkt.txt");
+    }
+
+    /**
+     * Executes the conversion. This method returns after all files have been written.
+     * This method can be invoked again for converting the files after they changed.
+     */
+    void run() throws IOException, FactoryException {
+        final long start = System.nanoTime();
+        if (verify != null && streaming) {
+            throw new IllegalStateException("Verification can not be done in streaming mode.");
+        }
+        if (verify == null) {
+            verifier = null;
+        } else if (verifier == null || !warm || verifier.mode != verify) {
+            verifier = new RoundTripVerifier(verified, verify);
+        } else {
+            verifier.begin();
+        }
+        mismatches = 0;
+        ConversionCache previous = conversions;
+        if (previous == null && (cache != null || warm)) {
+            previous = new ConversionCache(cache);
+        }
+        conversions = warm ? previous : null;
+        ellipsoids    = new EllipsoidParser();
+        datums        = new DatumParser(ellipsoids);
+        planetodetics = new PlanetodeticParser(datums);
+        projected     = new ProjectedParser(planetodetics);
+        final Parser<?>[] parsers = {ellipsoids, datums, planetodetics, projected};
+        for (final Parser<?> parser : parsers) {
+            parser.setCache(previous);
+        }
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        final List<WKTWriter> writers = new CopyOnWriteArrayList<>();
+        final List<ShardedStore.Writer> shards = new CopyOnWriteArrayList<>();
+        final List<CompletableFuture<?>> stages = new ArrayList<>();
+        boolean success = false;
+        try {
+            final CompletableFuture<CSVTokenizer> e = stage(stages, load(executor, ellipsoids,    ELLIPSOIDS));
+            final CompletableFuture<CSVTokenizer> d = stage(stages, load(executor, datums,        DATUMS));
+            final CompletableFuture<CSVTokenizer> g = stage(stages, load(executor, planetodetics, PLANETODETICS));
+            final CompletableFuture<CSVTokenizer> p = stage(stages, load(executor, projected,     PROJECTIONS));
+
+            final CompletableFuture<Void> eDone = stage(stages, e.thenAcceptAsync((records) -> parse(ellipsoids, records), executor));
+            final CompletableFuture<Void> dDone = stage(stages, d.thenCombineAsync(eDone, (records, x) -> parse(datums, records), executor));
+            final CompletableFuture<Void> gDone = stage(stages, g.thenCombineAsync(dDone, (records, x) -> parse(planetodetics, records), executor));
+            /*
+             * Planetodetic CRSs are written as soon as they are available, in parallel with the creation
+             * of projected CRSs. Projected CRSs are written after them, so the file content does not change.
+             * In streaming mode, projected CRSs are created only after planetodetic CRSs have been written,
+             * because each projected CRS is written immediately after its creation. All output files are
+             * written in the same pass.
+             */
+            final CompletableFuture<Void> opened = stage(stages, gDone.thenRunAsync(() -> unchecked(() -> {
+                final WKTWriter main = new WKTWriter(output, parallelism, bufferSize);
+                writers.add(main);
+                if (store != null) {
+                    final ShardedStore.Writer index = new ShardedStore.Writer(store, bufferSize);
+                    shards.add(index);
+                    main.listener = index;
+                }
+                if (verifier != null) {
+                    main.listener = (main.listener != null) ? main.listener.andThen(verifier) : verifier;
+                }
+                for (final Map.Entry<Encoding,Path> export : exports.entrySet()) {
+                    writers.add(new WKTWriter(export.getValue(), parallelism, bufferSize, export.getKey()));
+                }
+                for (final WKTWriter out : writers) {
+                    planetodetics.write(out);
+                }
+                return null;
+            }), executor));
+            final CompletableFuture<Void> written;
+            if (streaming) {
+                written = stage(stages, p.thenCombineAsync(opened, (records, x) -> unchecked(() -> {
+                    projected.stream(writers.toArray(new WKTWriter[writers.size()]));
+                    parse(projected, records);
+                    close(writers);
+                    close(shards);
+                    return null;
+                }), executor));
+            } else {
+                final CompletableFuture<Void> pDone = stage(stages, p.thenCombineAsync(gDone, (records, x) -> {
+                    parse(projected, records);
+                    return null;
+                }, executor));
+                written = stage(stages, opened.thenCombineAsync(pDone, (x, y) -> unchecked(() -> {
+                    for (final WKTWriter out : writers) {
+                        projected.write(out);
+                    }
+                    close(writers);
+                    close(shards);
+                    return null;
+                }), executor));
+            }
+            join(written);
+            success = true;
+        } finally {
+            /*
+             * If a stage failed, other stages may still be running and writers may still be open.
+             * Stop the stages before closing the writers for releasing their threads and files,
+             * since writers can not be closed while a stage is writing in them. The shard store is
+             * left as it was before this run. Exceptions are ignored in that case since the original
+             * failure is more informative.
+             */
+            if (!success) {
+                cancel(stages, executor);
+                if (conversions != null) {
+                    conversions.next(false);
+                }
+                try {
+                    close(writers);
+                } catch (IOException | RuntimeException ignore) {
+                }
+                for (final ShardedStore.Writer index : shards) try {
+                    index.abort();
+                } catch (IOException | RuntimeException ignore) {
+                }
+            }
+            executor.shutdownNow();
+        }
+        saves = writers.stream().map((out) -> out.metrics).toArray(Metrics[]::new);
+        if (previous != null) {
+            previous.save();
+            previous.next(true);
+        }
+        if (snapshot != null) {
+            Snapshot.write(snapshot, parsers);
+        }
+        if (verifier != null) {
+            mismatches = verifier.verify(output, this::crs, parallelism);
+        }
+        elapsedTime = System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the number of objects which did not pass the verification in the last run.
+     * This is zero if the verification is disabled.
+     */
+    long mismatches() {
+        return mismatches;
+    }
+
+    /**
+     * Returns the wall-clock time of the last run, in nanoseconds. Stages running concurrently
+     * are counted only once, so this time may be shorter than the sum of the stage times.
+     */
+    long elapsedTime() {
+        return elapsedTime;
+    }
+
+    /**
+     * Returns the planetodetic or projected CRS for the given {@code "authority:version:code"} key.
+     * This method can be invoked only after {@link #run()}.
+     *
+     * @throws FactoryException if there is no CRS for the given key.
+     */
+    CoordinateReferenceSystem crs(final String key) throws FactoryException {
+        CoordinateReferenceSystem crs = planetodetics.get(key);
+        if (crs == null) {
+            crs = projected.get(key);
+            if (crs == null) {
+                throw new NoSuchAuthorityCodeException("No CRS for \"" + key + "\".", null, key);
+            }
+        }
+        return crs;
+    }
+
+    /**
+     * Returns the counters and timers of all stages, in execution order.
+     */
+    Metrics[] metrics() {
+        final Metrics[] stages = {ellipsoids.metrics(), datums.metrics(), planetodetics.metrics(), projected.metrics()};
+        final Metrics[] all = Arrays.copyOf(stages, stages.length + saves.length + (verifier != null ? 1 : 0));
+        System.arraycopy(saves, 0, all, stages.length, saves.length);
+        if (verifier != null) {
+            all[all.length - 1] = verifier.metrics;
+        }
+        return all;
+    }
+
+    /**
+     * Closes all given writers, even if closing one of them fails.
+     */
+    private static void close(final List<? extends Closeable> writers) throws IOException {
+        IOException failure = null;
+        for (final Closeable out : writers) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Starts reading and decoding the given file of the directory in a background thread.
+     */
+    private CompletableFuture<CSVTokenizer> load(final ExecutorService executor, final Parser<?> parser, final String file) {
+        return CompletableFuture.supplyAsync(() -> unchecked(() -> parser.load(directory.resolve(file))), executor);
+    }
+
+    /**
+     * Creates the objects of the given parser from the given records.
+     */
+    private Void parse(final Parser<?> parser, final CSVTokenizer records) {
+        return unchecked(() -> {
+            parser.parse(records, parallelism);
+            return null;
+        });
+    }
+
+    /**
+     * Adds the given stage to the list of stages to cancel in case of failure, and returns it.
+     */
+    private static <V> CompletableFuture<V> stage(final List<CompletableFuture<?>> stages, final CompletableFuture<V> stage) {
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Cancels the stages which have not started, interrupts the running stages and waits for them to stop.
+     */
+    private static void cancel(final List<CompletableFuture<?>> stages, final ExecutorService executor) {
+        for (final CompletableFuture<?> stage : stages) {
+            stage.cancel(true);
+        }
+        executor.shutdownNow();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                // Running stages have been interrupted and should stop soon.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Executes the given task, wrapping checked exceptions in {@link CompletionException}.
+     */
+    private static <V> V unchecked(final Callable<V> task) {
+        try {
+            return task.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Waits for the given task to complete, and unwraps the exception if it failed.
+     */
+    private static void join(final CompletableFuture<?> task) throws IOException, FactoryException {
+        try {
+            task.join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)      throw (IOException) cause;
+            if (cause instanceof FactoryException) throw (FactoryException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw e;
+        }
+    }
+}
@@ -41,20 +41,43 @@ final class PlanetodeticParser extends Parser<GeodeticCRS> {
     PlanetodeticParser(final DatumParser datums) throws FactoryException {
         this.datums = datums;
         final CSFactory csFactory = getCSFactory();
-        CoordinateSystemAxis y = csFactory.createCoordinateSystemAxis(name("Planetodetic latitude"),  "φ", AxisDirection.NORTH, Units.DEGREE);
-        CoordinateSystemAxis x = csFactory.createCoordinateSystemAxis(name("Planetodetic longitude"), "λ", AxisDirection.EAST,  Units.DEGREE);
-        ellipsoidalEastOriented = csFactory.createEllipsoidalCS(name("Planetary ellipsoidal CS (East oriented)"), y, x);
+        CoordinateSystemAxis y = unique(csFactory.createCoordinateSystemAxis(name("Planetodetic latitude"),  "φ", AxisDirection.NORTH, Units.DEGREE));
+        CoordinateSystemAxis x = unique(csFactory.createCoordinateSystemAxis(name("Planetodetic longitude"), "λ", AxisDirection.EAST,  Units.DEGREE));
+        ellipsoidalEastOriented = unique(csFactory.createEllipsoidalCS(name("Planetary ellipsoidal CS (East oriented)"), y, x));
 
-        x = csFactory.createCoordinateSystemAxis(name("Planetodetic longitude"), "λ", AxisDirection.WEST,  Units.DEGREE);
-        ellipsoidalWestOriented = csFactory.createEllipsoidalCS(name("Planetary ellipsoidal CS (West oriented)"), y, x);
+        x = unique(csFactory.createCoordinateSystemAxis(name("Planetodetic longitude"), "λ", AxisDirection.WEST,  Units.DEGREE));
+        ellipsoidalWestOriented = unique(csFactory.createEllipsoidalCS(name("Planetary ellipsoidal CS (West oriented)"), y, x));
 
-        y = csFactory.createCoordinateSystemAxis(name("Planetocentric latitude"),  "Ω", AxisDirection.NORTH, Units.DEGREE);
-        x = csFactory.createCoordinateSystemAxis(name("Planetocentric longitude"), "θ", AxisDirection.EAST,  Units.DEGREE);
-        CoordinateSystemAxis radius = csFactory.createCoordinateSystemAxis(name("Radius"), "R", AxisDirection.UP, Units.METRE);
-        sphericalEastOriented = csFactory.createSphericalCS(name("Planetary spherical CS (East oriented)"), y, x, radius);
+        y = unique(csFactory.createCoordinateSystemAxis(name("Planetocentric latitude"),  "Ω", AxisDirection.NORTH, Units.DEGREE));
+        x = unique(csFactory.createCoordinateSystemAxis(name("Planetocentric longitude"), "θ", AxisDirection.EAST,  Units.DEGREE));
+        CoordinateSystemAxis radius = unique(csFactory.createCoordinateSystemAxis(name("Radius"), "R", AxisDirection.UP, Units.METRE));
+        sphericalEastOriented = unique(csFactory.createSphericalCS(name("Planetary spherical CS (East oriented)"), y, x, radius));
 
-        x = csFactory.createCoordinateSystemAxis(name("Planetocentric longitude"), "θ", AxisDirection.WEST,  Units.DEGREE);
-        sphericalWestOriented = csFactory.createSphericalCS(name("Planetary spherical CS (West oriented)"), y, x, radius);
+        x = unique(csFactory.createCoordinateSystemAxis(name("Planetocentric longitude"), "θ", AxisDirection.WEST,  Units.DEGREE));
+        sphericalWestOriented = unique(csFactory.createSphericalCS(name("Planetary spherical CS (West oriented)"), y, x, radius));
+    }
+
+    private PlanetodeticParser(final PlanetodeticParser parent) {
+        datums                  = parent.datums;
+        ellipsoidalEastOriented = parent.ellipsoidalEastOriented;
+        ellipsoidalWestOriented = parent.ellipsoidalWestOriented;
+        sphericalEastOriented   = parent.sphericalEastOriented;
+        sphericalWestOriented   = parent.sphericalWestOriented;
+    }
+
+    @Override
+    PlanetodeticParser fork() {
+        return new PlanetodeticParser(this);
+    }
+
+    @Override
+    RowTable.Kind kind(final int column) {
+        return (column >= 5) ? RowTable.Kind.WORD : super.kind(column);
+    }
+
+    @Override
+    long dependency(final RowTable rows, final int row) {
+        return datums.hash(rows.text(row, 4));
     }
 
     /*
@@ -68,18 +91,18 @@ final class PlanetodeticParser extends Parser<GeodeticCRS> {
      *   [6]: longitudeDirection
      */
     @Override
-    protected GeodeticCRS create(final String[] columns) throws FactoryException {
-        final GeodeticDatum datum = datums.get(columns[4]);
+    protected GeodeticCRS create(final RowTable rows, final int row) throws FactoryException {
+        final GeodeticDatum datum = datums.get(rows.text(row, 4));
         if (datum != null) {
             final boolean westOriented;
-            switch (columns[6].toLowerCase()) {
+            switch (rows.text(row, 6).toLowerCase()) {
                 case "west": westOriented = true; break;
                 case "east": westOriented = false; break;
-                default: throw fail("Unrecognized axis direction: " + columns[6]);
+                default: throw fail("Unrecognized axis direction: " + rows.text(row, 6));
             }
-            final Map<String,?> properties = properties(columns);
+            final Map<String,?> properties = properties(rows, row);
             final CRSFactory crsFactory = getCRSFactory();
-            switch (columns[5].toLowerCase()) {
+            switch (rows.text(row, 5).toLowerCase()) {
                 case "spherical": {
                     final SphericalCS cs = westOriented ? sphericalWestOriented : sphericalEastOriented;
                     return crsFactory.createGeocentricCRS(properties, datum, cs);
@@ -89,7 +112,7 @@ final class PlanetodeticParser extends Parser<GeodeticCRS> {
                     return crsFactory.createGeographicCRS(properties, datum, cs);
                 }
                 default: {
-                    throw fail("Unrecognized coordinate system type: " + columns[5]);
+                    throw fail("Unrecognized coordinate system type: " + rows.text(row, 5));
                 }
             }
         }
@@ -0,0 +1,387 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import org.apache.sis.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.cs.CoordinateSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.util.FactoryException;
+
+
+/**
+ * Transforms large files of points from one CRS to another. Points are read in batches of {@value #BATCH_SIZE},
+ * each batch is transformed by a single call to {@link MathTransform#transform(double[], int, double[], int, int)}
+ * in a background thread, and results are written in the same order than the input. The number of batches in
+ * memory is bounded, so memory usage does not depend on the number of points.
+ *
+ * <p>Two file formats are supported. If the file name ends with {@code ".csv"}, each line contains the
+ * coordinates of one point after a header line. Otherwise the file contains raw little-endian {@code double}
+ * values, with the coordinates of each point stored consecutively. The output file has the same format than
+ * the input file. In both cases coordinates are in the axis order of the CRS.</p>
+ *
+ * <p>Points that can not be transformed are written with NaN coordinates.</p>
+ */
+final class PointTransformer {
+    /**
+     * Maximal number of points transformed in a single call to the math transform.
+     */
+    static final int BATCH_SIZE = 64 * 1024;
+
+    /**
+     * Maximal number of batches waiting to be written, per thread.
+     */
+    private static final int PENDING_PER_THREAD = 2;
+
+    /**
+     * Approximate number of bytes per point in a CSV file, used for estimating the number of batches.
+     */
+    private static final int CSV_BYTES_PER_POINT = 24;
+
+    /**
+     * The transform from source CRS to target CRS.
+     */
+    private final MathTransform transform;
+
+    /**
+     * Number of dimensions of source and target points.
+     */
+    private final int sourceDimension, targetDimension;
+
+    /**
+     * Number of array elements per point when transforming in-place, which is the maximal number of dimensions.
+     */
+    private final int stride;
+
+    /**
+     * Axis abbreviations of the target CRS, for the header of CSV output.
+     */
+    private final String header;
+
+    /**
+     * Number of threads to use for transforming points.
+     */
+    private final int parallelism;
+
+    /**
+     * Counters and timers of the transformation. The number of points is stored in
+     * {@link Metrics#read} and the number of successfully transformed points in {@link Metrics#accepted}.
+     */
+    final Metrics metrics;
+
+    /**
+     * Creates a transformer between the given CRSs.
+     */
+    PointTransformer(final CoordinateReferenceSystem source, final CoordinateReferenceSystem target, final int parallelism)
+            throws FactoryException
+    {
+        transform        = CRS.findOperation(source, target, null).getMathTransform();
+        sourceDimension  = transform.getSourceDimensions();
+        targetDimension  = transform.getTargetDimensions();
+        stride           = Math.max(sourceDimension, targetDimension);
+        this.parallelism = parallelism;
+        metrics          = new Metrics("transform");
+        final CoordinateSystem cs = target.getCoordinateSystem();
+        final StringBuilder buffer = new StringBuilder();
+        for (int i=0; i<cs.getDimension(); i++) {
+            if (i != 0) buffer.append(',');
+            buffer.append(cs.getAxis(i).getAbbreviation());
+        }
+        header = buffer.toString();
+    }
+
+    /**
+     * Transforms all points of the input file and writes them in the output file.
+     */
+    void transform(final Path input, final Path output) throws IOException {
+        final long start = System.nanoTime();
+        if (input.getFileName().toString().endsWith(".csv")) {
+            transformCSV(input, output);
+        } else {
+            transformBinary(input, output);
+        }
+        metrics.elapsedTime = System.nanoTime() - start;
+    }
+
+    /**
+     * Returns the number of points transformed per second.
+     */
+    double throughput() {
+        return metrics.read.sum() / (metrics.elapsedTime / 1E9);
+    }
+
+    /**
+     * Transforms a file of raw little-endian {@code double} values.
+     */
+    private void transformBinary(final Path input, final Path output) throws IOException {
+        try (FileChannel in  = FileChannel.open(input,  StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final long pointSize = sourceDimension * (long) Double.BYTES;
+            final long count = in.size() / pointSize;
+            if (count * pointSize != in.size()) {
+                throw new IOException("File size is not a multiple of " + pointSize + " bytes: " + input);
+            }
+            final Batches<ByteBuffer> batches = new Batches<>() {
+                @Override void write(final ByteBuffer buffer) throws IOException {
+                    final long start = System.nanoTime();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    metrics.ioTime.add(System.nanoTime() - start);
+                }
+            };
+            try {
+                for (long first = 0; first < count; first += BATCH_SIZE) {
+                    final long position = first * pointSize;
+                    final int n = (int) Math.min(BATCH_SIZE, count - first);
+                    batches.submit(() -> {
+                        final long start = System.nanoTime();
+                        final ByteBuffer buffer = ByteBuffer.allocate(n * sourceDimension * Double.BYTES);
+                        while (buffer.hasRemaining()) {
+                            if (in.read(buffer, position + buffer.position()) < 0) {
+                                throw new EOFException(input.toString());
+                            }
+                        }
+                        metrics.ioTime.add(System.nanoTime() - start);
+                        final double[] points = new double[n * stride];
+                        buffer.flip().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(points, 0, n * sourceDimension);
+                        transform(points, n);
+                        final ByteBuffer result = ByteBuffer.allocate(n * targetDimension * Double.BYTES);
+                        result.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().put(points, 0, n * targetDimension);
+                        return result;
+                    });
+                }
+                batches.flush();
+            } finally {
+                batches.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Transforms a CSV file. The file is read as a stream of lines, one point per line, and each batch of
+     * {@value #BATCH_SIZE} lines is parsed and transformed in a background thread. Since the number of pending
+     * batches is bounded, memory usage does not depend on the file size.
+     */
+    private void transformCSV(final Path input, final Path output) throws IOException {
+        try (BufferedReader in  = Files.newBufferedReader(input);
+             BufferedWriter out = Files.newBufferedWriter(output))
+        {
+            out.write(header);
+            out.newLine();
+            final Batches<String> batches = new Batches<>() {
+                @Override void write(final String text) throws IOException {
+                    final long start = System.nanoTime();
+                    out.write(text);
+                    metrics.ioTime.add(System.nanoTime() - start);
+                }
+            };
+            try {
+                final StringBuilder lines = new StringBuilder();
+                long start = System.nanoTime();
+                String line;
+                do line = in.readLine();                    // Skip the header line.
+                while (line != null && isComment(line));
+                int n = 0;
+                while ((line = in.readLine()) != null) {
+                    lines.append(line).append('\n');
+                    if (++n == BATCH_SIZE) {
+                        metrics.ioTime.add(System.nanoTime() - start);
+                        submit(batches, lines, n);
+                        lines.setLength(0);
+                        n = 0;
+                        start = System.nanoTime();
+                    }
+                }
+                metrics.ioTime.add(System.nanoTime() - start);
+                if (n != 0) {
+                    submit(batches, lines, n);
+                }
+                batches.flush();
+            } finally {
+                batches.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given line is empty or a comment, which are skipped by {@link CSVTokenizer}.
+     */
+    private static boolean isComment(final String line) {
+        final String text = line.trim();
+        return text.isEmpty() || text.charAt(0) == '#';
+    }
+
+    /**
+     * Submits the transformation of the given lines of a CSV file.
+     *
+     * @param  lines  the lines to transform, each one followed by a line separator.
+     * @param  count  maximal number of points in the given lines.
+     */
+    private void submit(final Batches<String> batches, final StringBuilder lines, final int count) throws IOException {
+        final char[] chars = new char[lines.length()];
+        lines.getChars(0, chars.length, chars, 0);
+        batches.submit(() -> {
+            final CSVTokenizer records = new CSVTokenizer(chars, 0, chars.length);
+            final double[] points = new double[count * stride];
+            int n = 0;
+            while (records.next()) {
+                final String[] columns = records.columns();
+                for (int d=0; d<sourceDimension; d++) {
+                    points[n * sourceDimension + d] = Parser.parseDouble(columns, d);
+                }
+                n++;
+            }
+            transform(points, n);
+            final StringBuilder buffer = new StringBuilder(n * targetDimension * CSV_BYTES_PER_POINT / 2);
+            for (int p=0; p<n; p++) {
+                for (int d=0; d<targetDimension; d++) {
+                    if (d != 0) buffer.append(',');
+                    buffer.append(points[p * targetDimension + d]);
+                }
+                buffer.append(System.lineSeparator());
+            }
+            return buffer.toString();
+        });
+    }
+
+    /**
+     * Transforms in-place the given number of points. The array length shall be at least
+     * {@code count} × max(source dimension, target dimension). If the transformation of the
+     * whole batch fails, points are transformed one by one and the failed points are set to NaN.
+     * The source coordinates are copied before the batch call, since a failed batch may have
+     * overwritten some of them.
+     */
+    private void transform(final double[] points, final int count) {
+        final long start = System.nanoTime();
+        final double[] source = Arrays.copyOf(points, count * sourceDimension);
+        int failed = 0;
+        try {
+            transform.transform(points, 0, points, 0, count);
+        } catch (TransformException e) {
+            final double[] point = new double[stride];
+            for (int i=0; i<count; i++) {
+                System.arraycopy(source, i * sourceDimension, point, 0, sourceDimension);
+                try {
+                    transform.transform(point, 0, point, 0, 1);
+                } catch (TransformException f) {
+                    Arrays.fill(point, Double.NaN);
+                    metrics.reject("Transformation failed");
+                    failed++;
+                }
+                System.arraycopy(point, 0, points, i * targetDimension, targetDimension);
+            }
+        }
+        metrics.transformTime.add(System.nanoTime() - start);
+        metrics.read.add(count);
+        metrics.accepted.add(count - failed);
+    }
+
+    /**
+     * Batches being transformed in background threads, written in the order they were submitted.
+     */
+    private abstract class Batches<V> {
+        /**
+         * The threads where to transform points, or {@code null} for transforming in the caller thread.
+         */
+        private final ExecutorService executor;
+
+        /**
+         * Batches submitted but not yet written.
+         */
+        private final ArrayDeque<Future<V>> pending;
+
+        Batches() {
+            executor = (parallelism > 1) ? Executors.newFixedThreadPool(parallelism) : null;
+            pending  = new ArrayDeque<>();
+        }
+
+        /**
+         * Writes the result of a batch. Invoked in the caller thread, in submission order.
+         */
+        abstract void write(V result) throws IOException;
+
+        /**
+         * Submits a batch, after writing the oldest batch if too many batches are pending.
+         */
+        final void submit(final Callable<V> task) throws IOException {
+            if (executor == null) {
+                final FutureTask<V> future = new FutureTask<>(task);
+                future.run();
+                write(take(future));
+            } else {
+                if (pending.size() >= parallelism * PENDING_PER_THREAD) {
+                    write(take(pending.removeFirst()));
+                }
+                pending.addLast(executor.submit(task));
+            }
+        }
+
+        /**
+         * Writes all pending batches.
+         */
+        final void flush() throws IOException {
+            while (!pending.isEmpty()) {
+                write(take(pending.removeFirst()));
+            }
+        }
+
+        final void shutdown() {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Waits for the given batch to be transformed and returns it.
+     */
+    private static <V> V take(final Future<V> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException)      throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -15,7 +15,17 @@
  */
 package planetlab.wkt;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.sis.measure.Units;
+import org.apache.sis.parameter.Parameters;
+import org.opengis.parameter.GeneralParameterDescriptor;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterDescriptor;
+import org.opengis.parameter.ParameterNotFoundException;
+import org.opengis.parameter.ParameterValue;
 import org.opengis.parameter.ParameterValueGroup;
 import org.opengis.referencing.crs.GeodeticCRS;
 import org.opengis.referencing.crs.GeographicCRS;
@@ -25,29 +35,245 @@ import org.opengis.referencing.cs.CSFactory;
 import org.opengis.referencing.cs.CartesianCS;
 import org.opengis.referencing.cs.CoordinateSystemAxis;
 import org.opengis.referencing.operation.Conversion;
-import org.opengis.referencing.operation.CoordinateOperationFactory;
 import org.opengis.referencing.operation.OperationMethod;
 import org.opengis.util.FactoryException;
 import org.opengis.util.NoSuchIdentifierException;
 
 
 /**
- * Parses the {@code "projected.csv"} file.
+ * Parses the {@code "projected.csv"} file. Rows using an unknown operation method or parameter name
+ * are rejected and counted in the metrics, instead of stopping the conversion.
  */
 final class ProjectedParser extends Parser<ProjectedCRS> {
     private final PlanetodeticParser planetodetics;
 
     private final CartesianCS cartesianEastOriented, cartesianWestOriented;
 
+    /**
+     * Operation methods and parameter bindings resolved for each method name found in the CSV file.
+     * Shared with forks of this parser.
+     */
+    private final Map<String,Template> templates;
+
+    /**
+     * Parameter values to copy for all rows of a method having the same parameter names in the same order.
+     * The group contains a value for each parameter name, so values can be set by index in the copies.
+     */
+    private static final class Binding {
+        /**
+         * Parameter names in the order of the CSV columns. Empty names are included.
+         */
+        final String[] names;
+
+        /**
+         * Index in {@link #parameters} of the value of each name, or -1 for empty names.
+         */
+        final int[] slots;
+
+        /**
+         * The parameter values to copy for each row, or {@code null} if a parameter name is unknown.
+         */
+        private final ParameterValueGroup parameters;
+
+        /**
+         * The first unknown parameter name, or {@code null} if all names are known.
+         */
+        final String unknown;
+
+        Binding(final String[] names, final int[] slots, final ParameterValueGroup parameters, final String unknown) {
+            this.names      = names;
+            this.slots      = slots;
+            this.parameters = parameters;
+            this.unknown    = unknown;
+        }
+
+        /**
+         * Returns whether the parameter names of the given row are the names of this binding.
+         */
+        boolean matches(final RowTable rows, final int row) {
+            if (names.length != count(rows, row)) {
+                return false;
+            }
+            for (int k=0; k<names.length; k++) {
+                if (!names[k].equals(rows.text(row, 6 + 2*k))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns a new group of parameter values with a value for each parameter name.
+         */
+        ParameterValueGroup createValue() {
+            return parameters.clone();
+        }
+    }
+
+    /**
+     * Returns the number of (name, value) pairs in the given row.
+     */
+    private static int count(final RowTable rows, final int row) {
+        return Math.max(0, (rows.length(row) - 5) / 2);
+    }
+
+    /**
+     * An operation method resolved once for all rows using it, together with the descriptors found
+     * for each parameter name used in the CSV file and the bindings of each sequence of names.
+     */
+    private static final class Template {
+        /**
+         * The operation method, or {@code null} if the method name is unknown.
+         */
+        final OperationMethod method;
+
+        /**
+         * Descriptors for each parameter name used in the CSV file, including names which are
+         * aliases or which needed to be replaced by another name.
+         */
+        private final Map<String,ParameterDescriptor<?>> descriptors;
+
+        /**
+         * Parameter values for each sequence of parameter names found in the CSV file for this method.
+         * There is usually only one sequence per method.
+         */
+        private final List<Binding> bindings;
+
+        Template(final OperationMethod method) {
+            this.method = method;
+            descriptors = new ConcurrentHashMap<>();
+            bindings    = new CopyOnWriteArrayList<>();
+        }
+
+        /**
+         * Returns the parameter values for the parameter names of the given row.
+         * The names are resolved only for the first row having a new sequence of names.
+         */
+        Binding binding(final RowTable rows, final int row) {
+            for (final Binding binding : bindings) {
+                if (binding.matches(rows, row)) {
+                    return binding;
+                }
+            }
+            final String[] names = new String[count(rows, row)];
+            final int[] slots = new int[names.length];
+            final ParameterValueGroup parameters = method.getParameters().createValue();
+            final ParameterValue<?>[] values = new ParameterValue<?>[names.length];
+            String unknown = null;
+            for (int k=0; k<names.length; k++) {
+                final String name = names[k] = rows.text(row, 6 + 2*k);
+                if (!name.isEmpty() && unknown == null) {
+                    final ParameterDescriptor<?> descriptor = descriptor(name);
+                    if (descriptor == null) {
+                        unknown = name;
+                    } else {
+                        values[k] = Parameters.castOrWrap(parameters).getOrCreate(descriptor);
+                    }
+                }
+            }
+            final List<GeneralParameterValue> list = parameters.values();
+            for (int k=0; k<names.length; k++) {
+                slots[k] = -1;
+                if (values[k] != null) {
+                    for (int i=list.size(); --i >= 0;) {
+                        if (list.get(i) == values[k]) {
+                            slots[k] = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            final Binding binding = new Binding(names, slots, (unknown == null) ? parameters : null, unknown);
+            bindings.add(binding);
+            return binding;
+        }
+
+        /**
+         * Returns the descriptor for the given parameter name, or {@code null} if unknown.
+         */
+        ParameterDescriptor<?> descriptor(final String name) {
+            ParameterDescriptor<?> descriptor = descriptors.get(name);
+            if (descriptor == null) {
+                String search = name;
+                switch (name) {
+                    case "Longitude_Of_Center": search = "Central_Meridian"; break;   // For Sinusoidal.
+                }
+                final GeneralParameterDescriptor candidate;
+                try {
+                    candidate = method.getParameters().descriptor(search);
+                } catch (ParameterNotFoundException e) {
+                    return null;
+                }
+                if (!(candidate instanceof ParameterDescriptor<?>)) {
+                    return null;
+                }
+                descriptor = (ParameterDescriptor<?>) candidate;
+                descriptors.putIfAbsent(name, descriptor);
+            }
+            return descriptor;
+        }
+    }
+
     ProjectedParser(final PlanetodeticParser planetodetics) throws FactoryException {
         this.planetodetics = planetodetics;
         final CSFactory csFactory = getCSFactory();
-        CoordinateSystemAxis y = csFactory.createCoordinateSystemAxis(name("Northing"), "N", AxisDirection.NORTH, Units.METRE);
-        CoordinateSystemAxis x = csFactory.createCoordinateSystemAxis(name("Easting"),  "E", AxisDirection.EAST,  Units.METRE);
-        cartesianEastOriented = csFactory.createCartesianCS(name("Planetary Cartesian CS (East oriented)"), x, y);
+        CoordinateSystemAxis y = unique(csFactory.createCoordinateSystemAxis(name("Northing"), "N", AxisDirection.NORTH, Units.METRE));
+        CoordinateSystemAxis x = unique(csFactory.createCoordinateSystemAxis(name("Easting"),  "E", AxisDirection.EAST,  Units.METRE));
+        cartesianEastOriented = unique(csFactory.createCartesianCS(name("Planetary Cartesian CS (East oriented)"), x, y));
+
+        x = unique(csFactory.createCoordinateSystemAxis(name("Westing"), "W", AxisDirection.WEST, Units.METRE));
+        cartesianWestOriented = unique(csFactory.createCartesianCS(name("Planetary Cartesian CS (West oriented)"), x, y));
+        templates = new ConcurrentHashMap<>();
+    }
+
+    private ProjectedParser(final ProjectedParser parent) {
+        planetodetics         = parent.planetodetics;
+        cartesianEastOriented = parent.cartesianEastOriented;
+        cartesianWestOriented = parent.cartesianWestOriented;
+        templates             = parent.templates;
+    }
+
+    @Override
+    ProjectedParser fork() {
+        return new ProjectedParser(this);
+    }
 
-        x = csFactory.createCoordinateSystemAxis(name("Westing"), "W", AxisDirection.WEST, Units.METRE);
-        cartesianWestOriented = csFactory.createCartesianCS(name("Planetary Cartesian CS (West oriented)"), x, y);
+    /**
+     * Stores method and parameter names as dictionary words, and parameter values as numbers.
+     */
+    @Override
+    RowTable.Kind kind(final int column) {
+        if (column < 5) {
+            return super.kind(column);
+        }
+        return (column >= 6 && (column & 1) != 0) ? RowTable.Kind.NUMBER : RowTable.Kind.WORD;
+    }
+
+    @Override
+    long dependency(final RowTable rows, final int row) {
+        return planetodetics.hash(rows.text(row, 4));
+    }
+
+    /**
+     * Returns the operation method and parameter bindings for the given method name.
+     * The method is searched only on the first invocation for a given name.
+     */
+    private Template template(final String name) throws FactoryException {
+        Template template = templates.get(name);
+        if (template == null) {
+            OperationMethod method;
+            try {
+                method = getCoordinateOperationFactory().getOperationMethod(name);
+            } catch (NoSuchIdentifierException e) {
+                method = null;
+            }
+            template = new Template(method);
+            final Template existing = templates.putIfAbsent(name, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
     }
 
     /*
@@ -63,32 +289,35 @@ final class ProjectedParser extends Parser<ProjectedCRS> {
      *        (repeated as necessary)
      */
     @Override
-    protected ProjectedCRS create(final String[] columns) throws FactoryException {
-        final GeodeticCRS baseCRS = planetodetics.get(columns[4]);
-        if (baseCRS instanceof GeographicCRS) try {
+    protected ProjectedCRS create(final RowTable rows, final int row) throws FactoryException {
+        final GeodeticCRS baseCRS = planetodetics.get(rows.text(row, 4));
+        if (baseCRS instanceof GeographicCRS) {
             final AxisDirection direction = baseCRS.getCoordinateSystem().getAxis(1).getDirection();
             final CartesianCS cs;
             if (direction == AxisDirection.WEST) cs = cartesianWestOriented;
             else if (direction == AxisDirection.EAST) cs = cartesianEastOriented;
             else throw fail("Unexpected axis direction: " + direction);
 
-            final CoordinateOperationFactory opFactory = getCoordinateOperationFactory();
-            final OperationMethod method = getCoordinateOperationFactory().getOperationMethod(columns[5]);
-            final ParameterValueGroup pg = method.getParameters().createValue();
-            for (int i=6; i<columns.length; i+=2) {
-                String name = columns[i];
-                switch (name) {
-                    case "Longitude_Of_Center": name = "Central_Meridian"; break;   // For Sinusoidal.
-                }
-                if (!name.isEmpty()) {
-                    pg.parameter(name).setValue(parseDouble(columns, i+1));
+            final String method = rows.text(row, 5);
+            final Template template = template(method);
+            if (template.method == null) {
+                return reject("Unknown operation method “" + method + '”');
+            }
+            final Binding binding = template.binding(rows, row);
+            if (binding.unknown != null) {
+                return reject("Unknown parameter “" + binding.unknown + "” of " + method);
+            }
+            final ParameterValueGroup pg = binding.createValue();
+            final List<GeneralParameterValue> values = pg.values();
+            for (int k=0; k<binding.slots.length; k++) {
+                final int slot = binding.slots[k];
+                if (slot >= 0) {
+                    ((ParameterValue<?>) values.get(slot)).setValue(rows.number(row, 7 + 2*k));
                 }
             }
-            final Conversion conversionFromBase = opFactory.createDefiningConversion(name(columns[3]), method, pg);
-            return getCRSFactory().createProjectedCRS(properties(columns), (GeographicCRS) baseCRS, conversionFromBase, cs);
+            final Conversion conversionFromBase = getCoordinateOperationFactory().createDefiningConversion(name(rows.text(row, 3)), template.method, pg);
+            return getCRSFactory().createProjectedCRS(properties(rows, row), (GeographicCRS) baseCRS, conversionFromBase, cs);
             // TODO: needs GeoAPI and SIS update for allowing geocentric base CRS.
-        } catch (NoSuchIdentifierException e) {
-            System.out.println(e);
         }
         return null;
    }
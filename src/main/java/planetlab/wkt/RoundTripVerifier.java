@@ -0,0 +1,428 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import org.apache.sis.io.wkt.WKTFormat;
+import org.apache.sis.util.ComparisonMode;
+import org.apache.sis.util.Utilities;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.util.FactoryException;
+
+
+/**
+ * Verifies that the WKT written in the main output can be parsed back into objects equal to the objects
+ * created by the parsers. An instance is used as a {@link WKTWriter#listener}, so it receives the texts
+ * exactly as written. Texts are grouped in the same shards than {@link ShardedStore} (one per authority
+ * and body), and the hash of each shard is computed as texts are written. Only the keys and the lengths
+ * of the texts are kept in memory. After the conversion, the texts are read again from the main output
+ * and the texts of changed shards are parsed and compared in parallel, in batches of {@value #BATCH_SIZE}.
+ *
+ * <p>The hash of each shard verified without mismatch is saved, together with the comparison mode.
+ * A shard having the same hash in the next run is skipped, since the same texts would give the same result.
+ * Time spent parsing WKT is recorded as format time, and time spent getting the objects as factory time.</p>
+ */
+final class RoundTripVerifier implements BiConsumer<String,String> {
+    /**
+     * Identifies the file format. The version number shall be incremented after incompatible changes.
+     */
+    private static final int MAGIC = 0x574B5456, VERSION = 1;
+
+    /**
+     * Maximal number of mismatches to print. All mismatches are counted in the metrics.
+     */
+    private static final int MAX_REPORTED = 20;
+
+    /**
+     * Number of texts verified by each task.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Maximal number of pending tasks per thread. Bounds the number of texts in memory.
+     */
+    private static final int PENDING_PER_THREAD = 4;
+
+    /**
+     * Provides the object created by the parsers for a key.
+     */
+    @FunctionalInterface
+    interface Lookup {
+        /**
+         * Returns the object for the given {@code "authority:version:code"} key.
+         *
+         * @throws NoSuchAuthorityCodeException if there is no object for the given key.
+         * @throws FactoryException if the object can not be created.
+         */
+        Object get(String key) throws FactoryException;
+    }
+
+    /**
+     * Number of texts written in a shard, together with their hash.
+     */
+    private static final class Shard {
+        int count;
+        long hash = 0xCBF29CE484222325L;
+
+        /**
+         * Whether to parse and compare the texts of this shard, and whether they all matched.
+         */
+        boolean changed;
+        volatile boolean failed;
+
+        /**
+         * Counts the given text and updates the hash (FNV-1a) with the characters of the key and text.
+         */
+        void add(final String key, final String text) {
+            count++;
+            long h = hash;
+            for (final String s : new String[] {key, text}) {
+                for (int i=0; i<s.length(); i++) {
+                    h = (h ^ s.charAt(i)) * 0x100000001B3L;
+                }
+                h = (h ^ 0xFFFF) * 0x100000001B3L;      // Separator, not a valid character.
+            }
+            hash = h;
+        }
+    }
+
+    /**
+     * The file where hashes of verified shards are saved, or {@code null} if they are kept in memory only.
+     */
+    private final Path file;
+
+    /**
+     * Strictness of the comparison between the objects created by the parsers and the parsed objects.
+     */
+    final ComparisonMode mode;
+
+    /**
+     * Hashes of the shards verified without mismatch in the previous run.
+     */
+    private Map<String,Long> verified;
+
+    /**
+     * Hashes of the texts written in the current run, by shard name.
+     */
+    private Map<String,Shard> shards;
+
+    /**
+     * Keys of the texts written in the current run, in the order they were written.
+     */
+    private List<String> keys;
+
+    /**
+     * Number of characters of each text written in the current run, in the order they were written.
+     */
+    private int[] lengths;
+
+    /**
+     * Mismatches found in the current run, by key. Values are the reasons.
+     */
+    private final Map<String,String> mismatches;
+
+    /**
+     * The format used by each thread, since {@link WKTFormat} is not thread-safe.
+     */
+    private final ThreadLocal<WKTFormat> formats;
+
+    /**
+     * Counters and timers of the current run. Matching objects are counted as accepted,
+     * objects in unchanged shards as skipped, and mismatches as rejected.
+     */
+    Metrics metrics;
+
+    /**
+     * Loads the hashes of verified shards from the given file if it exists.
+     * Hashes saved with another comparison mode or by an incompatible version are ignored.
+     *
+     * @param  file  the file where hashes are saved, or {@code null} for hashes kept in memory only.
+     * @param  mode  strictness of the comparison.
+     */
+    RoundTripVerifier(final Path file, final ComparisonMode mode) throws IOException {
+        this.file  = file;
+        this.mode  = mode;
+        mismatches = new ConcurrentSkipListMap<>();
+        formats    = ThreadLocal.withInitial(() -> new WKTFormat(null, null));
+        verified   = Collections.emptyMap();
+        if (file != null) try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(mode.name())) {
+                final Map<String,Long> hashes = new HashMap<>();
+                while (in.readBoolean()) {
+                    hashes.put(in.readUTF(), in.readLong());
+                }
+                verified = hashes;
+            }
+        } catch (NoSuchFileException | EOFException e) {
+            // No previous verification, or previous verification interrupted. Verify everything.
+        }
+        begin();
+    }
+
+    /**
+     * Prepares this verifier for a new run. Shall be invoked before the first text is written.
+     */
+    void begin() {
+        shards  = new LinkedHashMap<>();
+        keys    = new ArrayList<>();
+        lengths = new int[1024];
+        metrics = new Metrics("verify");
+        mismatches.clear();
+    }
+
+    /**
+     * Records a text written in the main output.
+     */
+    @Override
+    public void accept(final String key, final String text) {
+        shards.computeIfAbsent(ShardedStore.shard(key), (k) -> new Shard()).add(key, text);
+        if (keys.size() == lengths.length) {
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        lengths[keys.size()] = text.length();
+        keys.add(key);
+    }
+
+    /**
+     * Parses the texts of all shards that changed since the last verification, and compares
+     * them with the objects provided by the given function. Mismatches are printed.
+     *
+     * @param  output       the main output, where the texts are read again.
+     * @param  lookup       provides the objects created by the parsers.
+     * @param  parallelism  number of threads.
+     * @return number of mismatches.
+     */
+    long verify(final Path output, final Lookup lookup, final int parallelism) throws IOException, FactoryException {
+        final long start = System.nanoTime();
+        int skipped = 0;
+        for (final Map.Entry<String,Shard> entry : shards.entrySet()) {
+            final Shard shard = entry.getValue();
+            final Long previous = verified.get(entry.getKey());
+            shard.changed = (previous == null || previous != shard.hash);
+            if (!shard.changed) {
+                metrics.read.add(shard.count);
+                metrics.accepted.add(shard.count);
+                metrics.skipped.add(shard.count);
+                skipped++;
+            }
+        }
+        final ArrayDeque<Future<?>> pending = new ArrayDeque<>();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (Reader in = open(output)) {
+            List<String> batchKeys  = new ArrayList<>(BATCH_SIZE);
+            List<String> batchTexts = new ArrayList<>(BATCH_SIZE);
+            for (int i=0; i<keys.size(); i++) {
+                final String key = keys.get(i);
+                final String text = read(in, lengths[i]);
+                final Shard shard = shards.get(ShardedStore.shard(key));
+                if (shard.changed) {
+                    batchKeys.add(key);
+                    batchTexts.add(text);
+                    if (batchKeys.size() == BATCH_SIZE) {
+                        final List<String> k = batchKeys, t = batchTexts;
+                        pending.addLast(pool.submit(() -> verify(k, t, lookup)));
+                        if (pending.size() > parallelism * PENDING_PER_THREAD) {
+                            pending.removeFirst().get();
+                        }
+                        batchKeys  = new ArrayList<>(BATCH_SIZE);
+                        batchTexts = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+            }
+            if (!batchKeys.isEmpty()) {
+                final List<String> k = batchKeys, t = batchTexts;
+                pending.addLast(pool.submit(() -> verify(k, t, lookup)));
+            }
+            while (!pending.isEmpty()) {
+                pending.removeFirst().get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof FactoryException) throw (FactoryException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new FactoryException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        final Map<String,Long> hashes = new HashMap<>();
+        shards.forEach((name, shard) -> {
+            if (!shard.failed) hashes.put(name, shard.hash);
+        });
+        verified = hashes;
+        save();
+        metrics.elapsedTime = System.nanoTime() - start;
+        /*
+         * Report the mismatches, then the throughput. Objects in skipped shards are not included
+         * in the throughput since they have not been parsed.
+         */
+        int count = 0;
+        for (final Map.Entry<String,String> entry : mismatches.entrySet()) {
+            if (++count > MAX_REPORTED) {
+                System.err.println("… and " + (mismatches.size() - MAX_REPORTED) + " more mismatches.");
+                break;
+            }
+            System.err.println("Mismatch for " + entry.getKey() + ": " + entry.getValue());
+        }
+        final long parsed = metrics.read.sum() - metrics.skipped.sum();
+        System.err.printf("Verified %d WKT in %d shards (%d unchanged shards skipped) at %.0f WKT/s in %s mode, %d mismatches.%n",
+                parsed, shards.size() - skipped, skipped, parsed / (metrics.elapsedTime / 1E9), mode, mismatches.size());
+        shards = Collections.emptyMap();        // Release the keys.
+        keys   = Collections.emptyList();
+        return mismatches.size();
+    }
+
+    /**
+     * Opens the main output for reading the texts again.
+     */
+    private static Reader open(final Path output) throws IOException {
+        InputStream in = Files.newInputStream(output);
+        if (output.getFileName().toString().endsWith(".gz")) {
+            in = new GZIPInputStream(in);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a text of the given length, then skips the line separators that follow it.
+     */
+    private static String read(final Reader in, final int length) throws IOException {
+        final char[] text = new char[length];
+        for (int n=0; n<length;) {
+            final int r = in.read(text, n, length - n);
+            if (r < 0) throw new EOFException("The output is shorter than the texts written.");
+            n += r;
+        }
+        int c;
+        do {
+            in.mark(1);
+            c = in.read();
+        } while (c == '\n' || c == '\r');
+        in.reset();
+        return new String(text);
+    }
+
+    /**
+     * Parses and compares the given texts. The shard of a text which does not match is marked as failed.
+     */
+    private Void verify(final List<String> keys, final List<String> texts, final Lookup lookup) throws FactoryException {
+        final WKTFormat format = formats.get();
+        for (int i=0; i<keys.size(); i++) {
+            final String key = keys.get(i);
+            metrics.read.increment();
+            long time = System.nanoTime();
+            Object parsed;
+            try {
+                parsed = format.parseObject(texts.get(i));
+            } catch (ParseException e) {
+                parsed = null;
+                mismatch(key, "Unparsable WKT", e.getMessage());
+            }
+            metrics.formatTime.add(System.nanoTime() - time);
+            if (parsed == null) {
+                shards.get(ShardedStore.shard(key)).failed = true;
+                continue;
+            }
+            time = System.nanoTime();
+            Object expected;
+            try {
+                expected = lookup.get(key);
+            } catch (NoSuchAuthorityCodeException e) {
+                expected = null;
+            }
+            metrics.factoryTime.add(System.nanoTime() - time);
+            if (expected == null) {
+                mismatch(key, "Missing object", "no object created for this key.");
+                shards.get(ShardedStore.shard(key)).failed = true;
+            } else if (!Utilities.deepEquals(expected, parsed, mode)) {
+                final ComparisonMode level = ComparisonMode.equalityLevel(expected, parsed);
+                mismatch(key, "Not equal in " + mode + " mode", (level != null)
+                        ? "equal only in " + level + " mode." : "not equal in any mode.");
+                shards.get(ShardedStore.shard(key)).failed = true;
+            } else {
+                metrics.accepted.increment();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records a mismatch for the given key.
+     *
+     * @param  reason  category of the mismatch, counted in the metrics.
+     * @param  detail  details printed in the report.
+     */
+    private void mismatch(final String key, final String reason, final String detail) {
+        metrics.reject(reason);
+        mismatches.put(key, reason + ", " + detail);
+    }
+
+    /**
+     * Saves the hashes of verified shards. The previous file is replaced only after the new one is complete.
+     * This method does nothing if hashes are kept in memory only.
+     */
+    private void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mode.name());
+            for (final Map.Entry<String,Long> entry : new TreeMap<>(verified).entrySet()) {
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
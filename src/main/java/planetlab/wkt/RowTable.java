@@ -0,0 +1,352 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.IntFunction;
+
+
+/**
+ * Rows of a CSV file stored by columns of primitive values instead of arrays of strings.
+ * The {@linkplain Kind kind} of each column is specified by the parser:
+ *
+ * <ul>
+ *   <li>Numeric values are parsed once when the row is added, and stored in a {@code double[]} array.
+ *       Values that can not be parsed are stored as strings, and the error is reported only if the
+ *       value is requested by {@link #number(int, int)}.</li>
+ *   <li>Values of columns having few distinct values (authority, method names, parameter names, <i>etc.</i>)
+ *       are stored as indices in a dictionary. The dictionary is searched directly with the characters
+ *       of the file, so no string is created for values already in the dictionary.</li>
+ *   <li>Other values (code, name, references) are stored as strings.</li>
+ * </ul>
+ *
+ * Rows can have different number of columns. Only the last row can be removed, which allows a parser
+ * to add each record, create its object, then keep the row only if the creation has been deferred.
+ * Consequently the table does not contain the whole file, and is not used for other passes on the rows.
+ * This class is not thread-safe for adding rows, but rows can be read concurrently.
+ */
+final class RowTable {
+    /**
+     * How the values of a column are stored.
+     */
+    enum Kind {
+        /** Values stored as strings. */
+        TEXT,
+
+        /** Values stored as indices in a dictionary of distinct strings. */
+        WORD,
+
+        /** Values parsed and stored as {@code double}. Empty values are stored as NaN. */
+        NUMBER
+    }
+
+    /**
+     * Provides the kind of each column, given its index.
+     */
+    private final IntFunction<Kind> kinds;
+
+    /**
+     * Number of rows.
+     */
+    private int count;
+
+    /**
+     * Index of the first cell of each row in {@link #cells}. The value at index {@link #count} is the number of cells.
+     */
+    private int[] offsets;
+
+    /**
+     * Index of the value of each cell in {@link #texts}, {@link #words} or {@link #numbers},
+     * depending on the kind of its column. For numeric columns, a negative value <var>v</var>
+     * means that the value could not be parsed and its text is at index {@code ~v} in {@link #texts}.
+     */
+    private int[] cells;
+
+    /**
+     * Values of {@link Kind#TEXT} columns, and number of valid elements.
+     */
+    private String[] texts;
+    private int textCount;
+
+    /**
+     * Values of {@link Kind#NUMBER} columns, and number of valid elements.
+     */
+    private double[] numbers;
+    private int numberCount;
+
+    /**
+     * Distinct values of {@link Kind#WORD} columns, and number of valid elements.
+     */
+    private String[] words;
+    private int wordCount;
+
+    /**
+     * Hash table of {@link #words}. Each element is an index in {@link #words} plus one, or 0 for an empty slot.
+     * The length is a power of 2.
+     */
+    private int[] slots;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param  kinds  provides the kind of each column, given its index.
+     */
+    RowTable(final IntFunction<Kind> kinds) {
+        this.kinds = kinds;
+        offsets = new int[64];
+        cells   = new int[512];
+        texts   = new String[128];
+        numbers = new double[128];
+        words   = new String[32];
+        slots   = new int[64];
+    }
+
+    /**
+     * Returns the number of rows.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the number of columns in the given row.
+     */
+    int length(final int row) {
+        Objects.checkIndex(row, count);
+        return offsets[row + 1] - offsets[row];
+    }
+
+    /**
+     * Returns the index in {@link #cells} of the given column of the given row, or -1 if the row has no such column.
+     */
+    private int cell(final int row, final int column) {
+        return (column < length(row)) ? offsets[row] + column : -1;
+    }
+
+    /**
+     * Returns the value of the given column as a string.
+     * Values of numeric columns are formatted by {@link Double#toString(double)}.
+     *
+     * @throws IndexOutOfBoundsException if the row does not have the given column.
+     */
+    String text(final int row, final int column) {
+        final int cell = cell(row, column);
+        if (cell < 0) {
+            throw new IndexOutOfBoundsException("Row " + row + " has no column " + column);
+        }
+        final int value = cells[cell];
+        switch (kinds.apply(column)) {
+            case TEXT:   return texts[value];
+            case WORD:   return words[value];
+            default:     return (value >= 0) ? Double.toString(numbers[value]) : texts[~value];
+        }
+    }
+
+    /**
+     * Returns the value of the given numeric column, or NaN if the value is empty or if the row does not have that column.
+     *
+     * @throws NumberFormatException if the value of the given column can not be parsed.
+     */
+    double number(final int row, final int column) {
+        final int cell = cell(row, column);
+        if (cell < 0) {
+            return Double.NaN;
+        }
+        final int value = cells[cell];
+        if (value < 0) {
+            throw new NumberFormatException("Unparsable number “" + texts[~value] + "” in column " + column + '.');
+        }
+        return numbers[value];
+    }
+
+    /**
+     * Appends the current record of the given tokenizer.
+     *
+     * @return index of the new row.
+     */
+    int add(final CSVTokenizer record) {
+        final int length = record.count();
+        final int start = begin(length);
+        for (int i=0; i<length; i++) {
+            final int value;
+            switch (kinds.apply(i)) {
+                case TEXT:   value = addText(record.column(i)); break;
+                case WORD:   value = word(record, i); break;
+                default: {
+                    final String text = record.column(i);
+                    value = number(text);
+                    break;
+                }
+            }
+            cells[start + i] = value;
+        }
+        return end(start + length);
+    }
+
+    /**
+     * Appends a copy of a row of another table having the same column kinds.
+     *
+     * @return index of the new row.
+     */
+    int add(final RowTable source, final int row) {
+        final int length = source.length(row);
+        final int from   = source.offsets[row];
+        final int start  = begin(length);
+        for (int i=0; i<length; i++) {
+            final int value = source.cells[from + i];
+            final int copy;
+            switch (kinds.apply(i)) {
+                case TEXT:   copy = addText(source.texts[value]); break;
+                case WORD:   copy = word(source.words[value]); break;
+                default:     copy = (value >= 0) ? addNumber(source.numbers[value]) : ~addText(source.texts[~value]); break;
+            }
+            cells[start + i] = copy;
+        }
+        return end(start + length);
+    }
+
+    /**
+     * Removes the last row. Words added to the dictionary by that row are kept.
+     */
+    void removeLast() {
+        final int row = count - 1;
+        final int length = length(row);
+        for (int i=0; i<length; i++) {
+            switch (kinds.apply(i)) {
+                case TEXT:   texts[--textCount] = null; break;
+                case NUMBER: {
+                    if (cells[offsets[row] + i] >= 0) numberCount--;
+                    else texts[--textCount] = null;
+                    break;
+                }
+            }
+        }
+        count = row;
+    }
+
+    /**
+     * Ensures that there is room for a new row of the given length, and returns the index of its first cell.
+     */
+    private int begin(final int length) {
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        final int start = offsets[count];
+        if (start + length > cells.length) {
+            cells = Arrays.copyOf(cells, Math.max(cells.length * 2, start + length));
+        }
+        return start;
+    }
+
+    /**
+     * Completes the addition of a row ending at the given cell index, and returns the index of the row.
+     */
+    private int end(final int limit) {
+        offsets[++count] = limit;
+        return count - 1;
+    }
+
+    private int addText(final String value) {
+        if (textCount == texts.length) {
+            texts = Arrays.copyOf(texts, textCount * 2);
+        }
+        texts[textCount] = value;
+        return textCount++;
+    }
+
+    /**
+     * Parses and adds the given value of a numeric column. If the value can not be parsed,
+     * the text is stored instead and the bitwise complement of its index is returned.
+     */
+    private int number(final String text) {
+        if (text.isEmpty()) {
+            return addNumber(Double.NaN);
+        }
+        try {
+            return addNumber(Double.parseDouble(text));
+        } catch (NumberFormatException e) {
+            return ~addText(text);
+        }
+    }
+
+    private int addNumber(final double value) {
+        if (numberCount == numbers.length) {
+            numbers = Arrays.copyOf(numbers, numberCount * 2);
+        }
+        numbers[numberCount] = value;
+        return numberCount++;
+    }
+
+    /**
+     * Returns the index in the dictionary of the value of the given column of the current record,
+     * adding the value if not already present. A string is created only for new words.
+     */
+    private int word(final CSVTokenizer record, final int column) {
+        if (record.isEscaped(column)) {
+            return word(record.column(column));
+        }
+        final int hash = record.columnHash(column);
+        final int mask = slots.length - 1;
+        int slot = hash & mask;
+        int id;
+        while ((id = slots[slot]) != 0) {
+            final String word = words[id - 1];
+            if (word.hashCode() == hash && record.columnEquals(column, word)) {
+                return id - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return addWord(record.column(column), slot);
+    }
+
+    /**
+     * Returns the index in the dictionary of the given value, adding the value if not already present.
+     */
+    private int word(final String value) {
+        final int mask = slots.length - 1;
+        int slot = value.hashCode() & mask;
+        int id;
+        while ((id = slots[slot]) != 0) {
+            if (words[id - 1].equals(value)) {
+                return id - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return addWord(value, slot);
+    }
+
+    /**
+     * Adds the given word in the given empty slot of the hash table, and returns its index in the dictionary.
+     */
+    private int addWord(final String value, final int slot) {
+        if (wordCount == words.length) {
+            words = Arrays.copyOf(words, wordCount * 2);
+        }
+        words[wordCount] = value;
+        slots[slot] = ++wordCount;
+        if (wordCount * 2 > slots.length) {
+            slots = new int[slots.length * 2];
+            final int mask = slots.length - 1;
+            for (int i=0; i<wordCount; i++) {
+                int s = words[i].hashCode() & mask;
+                while (slots[s] != 0) s = (s + 1) & mask;
+                slots[s] = i + 1;
+            }
+        }
+        return wordCount - 1;
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+
+/**
+ * WKT files split in shards, one per authority and celestial body, with an index allowing to read
+ * a single WKT without reading whole files. The body is the IAU code divided by 100 (for example 499
+ * for Mars), following the IAU convention that codes are the NAIF body identifier followed by two digits.
+ * Shards are plain text files in the same format than the main output, so they can still be browsed.
+ * Each conversion writes its shards in a new {@code shards-<generation>} subdirectory and publishes them
+ * by replacing the index atomically, so a store is never seen with an index and shards of different runs.
+ *
+ * <p>The {@value #INDEX} file is memory-mapped when opened. Its layout is (big-endian):</p>
+ * <ol>
+ *   <li>{@code int} magic number and {@code int} format version.</li>
+ *   <li>{@code int} generation, which identifies the subdirectory of the shards.</li>
+ *   <li>{@code int} number of shards, followed by the name of each shard as a {@code short} length and UTF-8 bytes.</li>
+ *   <li>{@code int} number of entries <var>N</var>.</li>
+ *   <li><var>N</var> entries of ({@code int} key start, {@code int} key length, {@code int} shard,
+ *       {@code long} offset, {@code int} length), sorted by the UTF-8 bytes of the key.</li>
+ *   <li>Keys encoded in UTF-8. Key start is relative to the beginning of this section.</li>
+ * </ol>
+ *
+ * Offset and length are in bytes of the shard file. Lookup by key is a binary search in the index.
+ */
+final class ShardedStore implements Closeable {
+    /**
+     * Identifies the file format. The version number shall be incremented after incompatible changes.
+     */
+    private static final int MAGIC = 0x574B5449, VERSION = 2;
+
+    /**
+     * Size in bytes of each index entry.
+     */
+    private static final int ENTRY_SIZE = 4 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * Name of the index file in the store directory.
+     */
+    static final String INDEX = "index.bin";
+
+    /**
+     * Extension of shard files.
+     */
+    private static final String EXTENSION = ".wkt";
+
+    /**
+     * Prefix of the name of the subdirectory of shards, followed by the generation number.
+     */
+    private static final String SHARDS = "shards-";
+
+    /**
+     * The memory-mapped index.
+     */
+    private final ByteBuffer index;
+
+    /**
+     * Number of entries, and position of the first entry and of the keys in {@link #index}.
+     */
+    private final int count, entriesStart, keysStart;
+
+    /**
+     * The shard files.
+     */
+    private final Path[] files;
+
+    /**
+     * The shard files opened for random access so far. A shard is opened when it is first needed.
+     */
+    private final AtomicReferenceArray<FileChannel> shards;
+
+    /**
+     * Maps the index of the given store directory in memory. Shard files are opened only when first needed.
+     * A store should be opened again after a new conversion, since the shards of the previous conversion
+     * are deleted.
+     */
+    private ShardedStore(final Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(INDEX), StandardOpenOption.READ)) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (index.getInt() != MAGIC || index.getInt() != VERSION) {
+            throw new IOException("Not a WKT store of version " + VERSION + ": " + directory);
+        }
+        files        = files(index, shards(directory, index.getInt()));
+        shards       = new AtomicReferenceArray<>(files.length);
+        count        = index.getInt();
+        entriesStart = index.position();
+        keysStart    = entriesStart + count * ENTRY_SIZE;
+    }
+
+    /**
+     * Returns the subdirectory of the shards of the given generation.
+     */
+    private static Path shards(final Path directory, final int generation) {
+        return directory.resolve(SHARDS + generation);
+    }
+
+    /**
+     * Reads the number of shards and their names from the given index, and returns the shard files.
+     */
+    private static Path[] files(final ByteBuffer index, final Path shards) {
+        final Path[] files = new Path[index.getInt()];
+        for (int i=0; i<files.length; i++) {
+            final byte[] name = new byte[Short.toUnsignedInt(index.getShort())];
+            index.get(name);
+            files[i] = shards.resolve(new String(name, StandardCharsets.UTF_8) + EXTENSION);
+        }
+        return files;
+    }
+
+    /**
+     * Opens the store in the given directory.
+     */
+    static ShardedStore open(final Path directory) throws IOException {
+        return new ShardedStore(directory);
+    }
+
+    /**
+     * Returns the number of objects in this store.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the WKT for the given {@code "authority:version:code"} key, or {@code null} if none.
+     * This method can be invoked concurrently.
+     */
+    String wkt(final String key) throws IOException {
+        final byte[] target = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] candidate = new byte[target.length + 1];
+        final ByteBuffer keys = index.duplicate();
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int position = entriesStart + mid * ENTRY_SIZE;
+            /*
+             * Compare only the first bytes of the candidate key, up to one byte more than the target key.
+             * This is sufficient for an unsigned lexicographic comparison and avoids allocations.
+             */
+            final int length = Math.min(index.getInt(position + Integer.BYTES), candidate.length);
+            keys.position(keysStart + index.getInt(position)).get(candidate, 0, length);
+            final int c = Arrays.compareUnsigned(candidate, 0, length, target, 0, target.length);
+            if      (c < 0) low  = mid + 1;
+            else if (c > 0) high = mid - 1;
+            else return read(position);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the WKT of the entry at the given position in the index.
+     */
+    private String read(final int position) throws IOException {
+        final FileChannel shard = shard(index.getInt(position + 2 * Integer.BYTES));
+        long offset = index.getLong(position + 3 * Integer.BYTES);
+        final ByteBuffer buffer = ByteBuffer.allocate(index.getInt(position + 3 * Integer.BYTES + Long.BYTES));
+        while (buffer.hasRemaining()) {
+            final int n = shard.read(buffer, offset);
+            if (n < 0) throw new EOFException();
+            offset += n;
+        }
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the shard file at the given index, opening it if this is the first time that it is needed.
+     */
+    private FileChannel shard(final int i) throws IOException {
+        FileChannel shard = shards.get(i);
+        if (shard == null) {
+            synchronized (shards) {
+                shard = shards.get(i);
+                if (shard == null) {
+                    shard = FileChannel.open(files[i]);
+                    shards.set(i, shard);
+                }
+            }
+        }
+        return shard;
+    }
+
+    /**
+     * Closes all shard files opened so far.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (int i=0; i<shards.length(); i++) {
+            final FileChannel shard = shards.getAndSet(i, null);
+            if (shard != null) try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+                else failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Returns the celestial body of the given {@code "authority:version:code"} key, or {@code null} if unknown.
+     * This is the code divided by 100, following the IAU convention.
+     */
+    static String body(final String key) {
+        final int s = key.lastIndexOf(':');
+        try {
+            return Integer.toString(Integer.parseInt(key.substring(s + 1)) / 100);
+        } catch (NumberFormatException e) {
+            return null;            // Not a code following the IAU convention.
+        }
+    }
+
+    /**
+     * Returns the name of the shard for the given {@code "authority:version:code"} key.
+     * Characters that may not be valid in file names are replaced by underscores.
+     */
+    static String shard(final String key) {
+        final String[] parts = key.split(":", 3);
+        final StringBuilder name = new StringBuilder(parts[0].isEmpty() ? "none" : parts[0]);
+        if (parts.length == 3) {
+            if (!parts[1].isEmpty()) {
+                name.append('_').append(parts[1]);
+            }
+            final String body = body(key);
+            name.append('_').append(body != null ? body : "other");
+        }
+        for (int i=0; i<name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '-' || c == '.')) {
+                name.setCharAt(i, '_');
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Writes WKT in a store directory. An instance can be used as a {@link WKTWriter#listener},
+     * so the store receives the texts produced for the main output without formatting objects again.
+     * The shards are written in a new subdirectory, and the index is replaced when this writer is closed.
+     * Then the shard files listed in the previous index are deleted. Other files are never modified.
+     *
+     * <p>At most {@value #MAX_OPEN_SHARDS} shards are open at the same time. When another shard is needed,
+     * the least recently used shard is closed and will be reopened in append mode if needed again.</p>
+     */
+    static final class Writer implements BiConsumer<String,String>, Closeable {
+        /**
+         * Separator written after each WKT, for keeping shards readable.
+         */
+        private static final byte[] SEPARATOR = System.lineSeparator().repeat(2).getBytes(StandardCharsets.UTF_8);
+
+        /**
+         * Maximal number of shard files open at the same time.
+         */
+        static final int MAX_OPEN_SHARDS = 16;
+
+        /**
+         * Location of a WKT in a shard.
+         */
+        private static final class Entry implements Comparable<Entry> {
+            final byte[] key;
+            final int shard, length;
+            final long offset;
+
+            Entry(final byte[] key, final int shard, final long offset, final int length) {
+                this.key    = key;
+                this.shard  = shard;
+                this.offset = offset;
+                this.length = length;
+            }
+
+            @Override
+            public int compareTo(final Entry other) {
+                return Arrays.compareUnsigned(key, other.key);
+            }
+        }
+
+        /**
+         * An output shard file and the number of bytes written in it.
+         */
+        private static final class Shard {
+            final int index;
+            final Path file;
+            OutputStream out;
+            long position;
+
+            Shard(final int index, final Path file) {
+                this.index = index;
+                this.file  = file;
+            }
+        }
+
+        /**
+         * The store directory.
+         */
+        private final Path directory;
+
+        /**
+         * Generation of the shards written by this writer.
+         */
+        private final int generation;
+
+        /**
+         * Shard files listed in the previous index, to delete after the new index has been written.
+         */
+        private final Path[] previous;
+
+        /**
+         * Shards created so far, by name, in creation order.
+         */
+        private final Map<String,Shard> shards;
+
+        /**
+         * Shards currently open, from the least recently used to the most recently used.
+         */
+        private final Map<String,Shard> opened;
+
+        /**
+         * Location of each WKT written so far.
+         */
+        private final List<Entry> entries;
+
+        /**
+         * Size of the output buffer of each shard, in bytes.
+         */
+        private final int bufferSize;
+
+        /**
+         * Whether the index has been replaced by the index of this writer.
+         */
+        private boolean published;
+
+        /**
+         * Creates a writer for the given directory, which is created if it does not exist.
+         * The index of a previous conversion, if any, is read for finding the shards to replace.
+         */
+        Writer(final Path directory, final int bufferSize) throws IOException {
+            this.directory  = Files.createDirectories(directory);
+            this.bufferSize = bufferSize;
+            int last = 0;
+            Path[] files = new Path[0];
+            try (FileChannel channel = FileChannel.open(directory.resolve(INDEX), StandardOpenOption.READ)) {
+                final ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (index.getInt() == MAGIC) {
+                    switch (index.getInt()) {
+                        case 1: files = files(index, directory); break;     // Shards were in the store directory.
+                        case 2: files = files(index, shards(directory, last = index.getInt())); break;
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // No previous conversion.
+            }
+            previous   = files;
+            generation = last + 1;
+            Files.createDirectories(shards(directory, generation));
+            shards  = new LinkedHashMap<>();
+            opened  = new LinkedHashMap<>(2 * MAX_OPEN_SHARDS, 0.75f, true);
+            entries = new ArrayList<>();
+        }
+
+        /**
+         * Appends the given WKT in the shard of the given key.
+         *
+         * @throws UncheckedIOException if an error occurred while writing the shard.
+         */
+        @Override
+        public void accept(final String key, final String wkt) {
+            try {
+                final String name = shard(key);
+                Shard shard = opened.get(name);
+                if (shard == null) {
+                    shard = shards.get(name);
+                    final OutputStream out;
+                    if (shard == null) {
+                        shard = new Shard(shards.size(), shards(directory, generation).resolve(name + EXTENSION));
+                        shards.put(name, shard);
+                        out = Files.newOutputStream(shard.file);
+                    } else {
+                        out = Files.newOutputStream(shard.file, StandardOpenOption.APPEND);
+                    }
+                    if (opened.size() >= MAX_OPEN_SHARDS) {
+                        final Iterator<Shard> it = opened.values().iterator();
+                        final Shard eldest = it.next();
+                        it.remove();
+                        eldest.out.close();
+                        eldest.out = null;
+                    }
+                    shard.out = new BufferedOutputStream(out, bufferSize);
+                    opened.put(name, shard);
+                }
+                final byte[] bytes = wkt.getBytes(StandardCharsets.UTF_8);
+                shard.out.write(bytes);
+                shard.out.write(SEPARATOR);
+                entries.add(new Entry(key.getBytes(StandardCharsets.UTF_8), shard.index, shard.position, bytes.length));
+                shard.position += bytes.length + SEPARATOR.length;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Closes all shards, replaces the index and deletes the shard files of the previous index.
+         * If the same key has been written many times, only the first occurrence is indexed.
+         */
+        @Override
+        public void close() throws IOException {
+            for (final Shard shard : opened.values()) {
+                shard.out.close();
+                shard.out = null;
+            }
+            opened.clear();
+            entries.sort(null);             // Stable sort: the first occurrence of duplicated keys is kept first.
+            final List<Entry> unique = new ArrayList<>(entries.size());
+            for (final Entry entry : entries) {
+                if (unique.isEmpty() || unique.get(unique.size() - 1).compareTo(entry) != 0) {
+                    unique.add(entry);
+                }
+            }
+            final Path tmp = directory.resolve(INDEX + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(generation);
+                out.writeInt(shards.size());
+                for (final String name : shards.keySet()) {
+                    final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                }
+                out.writeInt(unique.size());
+                int keyStart = 0;
+                for (final Entry entry : unique) {
+                    out.writeInt(keyStart);
+                    out.writeInt(entry.key.length);
+                    out.writeInt(entry.shard);
+                    out.writeLong(entry.offset);
+                    out.writeInt(entry.length);
+                    keyStart += entry.key.length;
+                }
+                for (final Entry entry : unique) {
+                    out.write(entry.key);
+                }
+            }
+            Files.move(tmp, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            published = true;
+            deletePrevious();
+        }
+
+        /**
+         * Closes and deletes the shards written by this writer without replacing the index.
+         * The store stays as it was before this writer was created. This is used after a failure.
+         * This method does nothing if the index has already been replaced.
+         */
+        void abort() throws IOException {
+            if (published) {
+                return;
+            }
+            for (final Shard shard : opened.values()) try {
+                shard.out.close();
+            } catch (IOException e) {
+                // Ignore since the file will be deleted.
+            }
+            opened.clear();
+            for (final Shard shard : shards.values()) {
+                Files.deleteIfExists(shard.file);
+            }
+            try {
+                Files.deleteIfExists(shards(directory, generation));
+            } catch (DirectoryNotEmptyException e) {
+                // Contains files that we did not create. Leave them.
+            }
+        }
+
+        /**
+         * Deletes the shard files listed in the previous index, then their subdirectory if it became empty.
+         */
+        private void deletePrevious() throws IOException {
+            for (final Path file : previous) {
+                Files.deleteIfExists(file);
+            }
+            if (generation > 1) try {
+                Files.deleteIfExists(shards(directory, generation - 1));
+            } catch (DirectoryNotEmptyException e) {
+                // Contains files that we did not create. Leave them.
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.sis.io.wkt.WKTFormat;
+import org.opengis.referencing.IdentifiedObject;
+import org.opengis.referencing.crs.GeodeticCRS;
+import org.opengis.referencing.crs.ProjectedCRS;
+import org.opengis.referencing.datum.Ellipsoid;
+import org.opengis.referencing.datum.GeodeticDatum;
+import org.opengis.util.FactoryException;
+
+
+/**
+ * Compact binary snapshot of the objects resolved by parsers. A snapshot allows services to get a few
+ * objects by code without parsing the CSV files. The file is memory-mapped when opened, and objects are
+ * rebuilt from their WKT only on first access, so opening cost does not depend on the number of objects.
+ *
+ * <p>File layout (big-endian):</p>
+ * <ol>
+ *   <li>{@code int} magic number and {@code int} format version.</li>
+ *   <li>{@code int} number of strings <var>S</var> and {@code int} number of entries <var>N</var>.</li>
+ *   <li><var>S</var>+1 {@code int} offsets of each string, relative to the start of string data.</li>
+ *   <li><var>N</var> entries of ({@code byte} type, {@code int} key string, {@code int} WKT string),
+ *       sorted by type then key.</li>
+ *   <li>String data, encoded in UTF-8. Identical strings are stored only once.</li>
+ * </ol>
+ */
+final class Snapshot {
+    /**
+     * Identifies the file format. The version number shall be incremented after incompatible changes.
+     */
+    private static final int MAGIC = 0x574B5453, VERSION = 1;
+
+    /**
+     * Size in bytes of the header and of each entry.
+     */
+    private static final int HEADER_SIZE = 4 * Integer.BYTES, ENTRY_SIZE = Byte.BYTES + 2 * Integer.BYTES;
+
+    /**
+     * Types of objects stored in a snapshot. The index in this array is the type code stored in entries.
+     * Keys are unique only for a given type, since an ellipsoid and a CRS may have the same code.
+     */
+    private static final Class<?>[] TYPES = {
+        Ellipsoid.class, GeodeticDatum.class, GeodeticCRS.class, ProjectedCRS.class
+    };
+
+    /**
+     * The memory-mapped file content.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Number of entries, and position of the first entry and of the string data in {@link #buffer}.
+     */
+    private final int count, entriesStart, stringsStart;
+
+    /**
+     * Objects already rebuilt, indexed by entry index.
+     */
+    private final Map<Integer,IdentifiedObject> objects;
+
+    /**
+     * The parser for rebuilding objects. All usages shall be synchronized on this format.
+     */
+    private final WKTFormat format;
+
+    /**
+     * Maps the given snapshot file in memory.
+     */
+    private Snapshot(final Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(Integer.BYTES) != VERSION) {
+            throw new IOException("Not a snapshot file of version " + VERSION + ": " + file);
+        }
+        final int stringCount = buffer.getInt(2 * Integer.BYTES);
+        count        = buffer.getInt(3 * Integer.BYTES);
+        entriesStart = HEADER_SIZE + (stringCount + 1) * Integer.BYTES;
+        stringsStart = entriesStart + count * ENTRY_SIZE;
+        objects      = new ConcurrentHashMap<>();
+        format       = new WKTFormat(null, null);
+    }
+
+    /**
+     * Opens the given snapshot file.
+     */
+    static Snapshot open(final Path file) throws IOException {
+        return new Snapshot(file);
+    }
+
+    /**
+     * Returns the type code for the given object, or -1 if the object can not be stored.
+     */
+    private static byte typeOf(final Object object) {
+        for (int i=TYPES.length; --i >= 0;) {
+            if (TYPES[i].isInstance(object)) {
+                return (byte) i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the codes of the types which may contain objects of the given class, in the order of {@link #typeOf(Object)}.
+     * Those types are the stored type which is the given class or a parent of it (for example {@code GeodeticCRS} for
+     * {@code GeographicCRS} or an implementation class), or all stored types which are subtypes of the given class
+     * (for example {@code GeodeticCRS} and {@code ProjectedCRS} for {@code CoordinateReferenceSystem}).
+     */
+    private static byte[] typeCodes(final Class<?> type) {
+        final byte[] codes = new byte[TYPES.length];
+        int n = 0;
+        for (int i=TYPES.length; --i >= 0;) {
+            if (TYPES[i].isAssignableFrom(type) || type.isAssignableFrom(TYPES[i])) {
+                codes[n++] = (byte) i;
+            }
+        }
+        return Arrays.copyOf(codes, n);
+    }
+
+    /**
+     * Writes all objects resolved by the given parsers in a snapshot file.
+     */
+    static void write(final Path file, final Parser<?>... parsers) throws IOException, FactoryException {
+        final class Entry implements Comparable<Entry> {
+            final byte type;
+            final String key;
+            final int keyIndex, textIndex;
+
+            Entry(byte type, String key, int keyIndex, int textIndex) {
+                this.type      = type;
+                this.key       = key;
+                this.keyIndex  = keyIndex;
+                this.textIndex = textIndex;
+            }
+
+            @Override
+            public int compareTo(final Entry other) {
+                final int c = Byte.compare(type, other.type);
+                return (c != 0) ? c : key.compareTo(other.key);
+            }
+        }
+        final Map<String,Integer> stringIndices = new HashMap<>();
+        final List<byte[]> strings = new ArrayList<>();
+        final List<Entry> entries = new ArrayList<>();
+        final WKTFormat f = new WKTFormat(null, null);
+        for (final Parser<?> parser : parsers) {
+            for (final Map.Entry<String,?> result : parser.results().entrySet()) {
+                final Object object = result.getValue();
+                final byte type = typeOf(object);
+                if (type >= 0) {
+                    final int[] indices = new int[2];
+                    final String[] values = {result.getKey(), f.format(object)};
+                    for (int i=0; i<indices.length; i++) {
+                        indices[i] = stringIndices.computeIfAbsent(values[i], (s) -> {
+                            strings.add(s.getBytes(StandardCharsets.UTF_8));
+                            return strings.size() - 1;
+                        });
+                    }
+                    entries.add(new Entry(type, values[0], indices[0], indices[1]));
+                }
+            }
+        }
+        entries.sort(null);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(strings.size());
+            out.writeInt(entries.size());
+            int offset = 0;
+            out.writeInt(offset);
+            for (final byte[] bytes : strings) {
+                out.writeInt(offset += bytes.length);
+            }
+            for (final Entry entry : entries) {
+                out.writeByte(entry.type);
+                out.writeInt(entry.keyIndex);
+                out.writeInt(entry.textIndex);
+            }
+            for (final byte[] bytes : strings) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of objects in this snapshot.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Decodes the string at the given index in the string table.
+     */
+    private String string(final int index) {
+        final int start = buffer.getInt(HEADER_SIZE + index * Integer.BYTES);
+        final int end   = buffer.getInt(HEADER_SIZE + (index + 1) * Integer.BYTES);
+        final byte[] bytes = new byte[end - start];
+        buffer.duplicate().position(stringsStart + start).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index of the entry for the given type and key, or -1 if none.
+     */
+    private int search(final byte type, final String key) {
+        int low = 0, high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int position = entriesStart + mid * ENTRY_SIZE;
+            int c = Byte.compare(buffer.get(position), type);
+            if (c == 0) {
+                c = string(buffer.getInt(position + Byte.BYTES)).compareTo(key);
+            }
+            if      (c < 0) low  = mid + 1;
+            else if (c > 0) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the WKT at the given entry index.
+     */
+    private String wkt(final int index) {
+        return string(buffer.getInt(entriesStart + index * ENTRY_SIZE + Byte.BYTES + Integer.BYTES));
+    }
+
+    /**
+     * Returns the WKT of the object of the given type and key, or {@code null} if none.
+     * The type can be any type compatible with the stored objects (see {@link #get(Class, String)}),
+     * but the object is not rebuilt for verifying that it is an instance of a subtype of the stored type.
+     * The key is {@code "authority:version:code"}.
+     */
+    String wkt(final Class<? extends IdentifiedObject> type, final String key) {
+        for (final byte code : typeCodes(type)) {
+            final int index = search(code, key);
+            if (index >= 0) {
+                return wkt(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the object of the given type and key, or {@code null} if none.
+     * The type can be a stored type ({@code Ellipsoid}, {@code GeodeticDatum}, {@code GeodeticCRS} or {@code ProjectedCRS}),
+     * a subtype or an implementation of a stored type, or a parent type. Since the same key may be used by objects of
+     * different types, a parent type like {@code IdentifiedObject} gives the CRS before the datum and the ellipsoid.
+     * The object is rebuilt from its WKT on first access, then cached.
+     * The key is {@code "authority:version:code"}.
+     */
+    <T extends IdentifiedObject> T get(final Class<T> type, final String key) throws FactoryException {
+        for (final byte code : typeCodes(type)) {
+            final int index = search(code, key);
+            if (index >= 0) {
+                final IdentifiedObject object = object(index, key);
+                if (type.isInstance(object)) {
+                    return type.cast(object);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the object at the given entry index, rebuilding it from its WKT on first access.
+     */
+    private IdentifiedObject object(final int index, final String key) throws FactoryException {
+        IdentifiedObject object = objects.get(index);
+        if (object == null) {
+            final String text = wkt(index);
+            try {
+                synchronized (format) {
+                    object = (IdentifiedObject) format.parseObject(text);
+                }
+            } catch (ParseException e) {
+                throw new FactoryException("Can not rebuild " + key + " from snapshot.", e);
+            }
+            final IdentifiedObject existing = objects.putIfAbsent(index, object);
+            if (existing != null) {
+                object = existing;
+            }
+        }
+        return object;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.GZIPOutputStream;
+import org.apache.sis.io.wkt.WKTFormat;
+
+
+/**
+ * Writes objects in WKT format, in the order they are given, with formatting optionally done
+ * in background threads. Each thread uses its own {@link WKTFormat} since that class is not
+ * thread-safe. Other {@linkplain Encoding encodings} than WKT 2 can be specified at construction
+ * time. Formatted texts go through a bounded reorder buffer before to be written by the caller
+ * thread, so memory usage does not depend on the number of objects to write.
+ *
+ * <p>If the output file name ends with {@code ".gz"}, the output is compressed in GZIP format.
+ * If there is no output file, the texts are only given to the {@linkplain #listener}.</p>
+ */
+final class WKTWriter implements Closeable {
+    /**
+     * Default size of the output buffer, in bytes.
+     */
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximal number of objects waiting to be written, per formatting thread.
+     */
+    private static final int PENDING_PER_THREAD = 16;
+
+    /**
+     * Where to write the WKT.
+     */
+    private final BufferedWriter out;
+
+    /**
+     * The format of the output.
+     */
+    final Encoding encoding;
+
+    /**
+     * The format to use when formatting in the caller thread, or {@code null} if formatting
+     * is done in background threads.
+     */
+    private final Function<Object,String> format;
+
+    /**
+     * The threads where to format objects, or {@code null} if formatting is done in the caller thread.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The format used by each thread of {@link #executor}.
+     */
+    private final ThreadLocal<Function<Object,String>> formats;
+
+    /**
+     * Texts being formatted in background threads, in the order they shall be written.
+     */
+    private final ArrayDeque<Future<String>> pending;
+
+    /**
+     * Keys of the objects in {@link #pending}, in the same order.
+     */
+    private final ArrayDeque<String> pendingKeys;
+
+    /**
+     * If non-null, the cache where to record each WKT written, for incremental conversion.
+     */
+    ConversionCache cache;
+
+    /**
+     * If non-null, invoked after each WKT is written with the object key and the text.
+     */
+    BiConsumer<String,String> listener;
+
+    /**
+     * Counters and timers of formatting and writing. The number of written objects
+     * is stored in {@link Metrics#read} and {@link Metrics#accepted}.
+     */
+    final Metrics metrics;
+
+    /**
+     * Maximal number of elements in {@link #pending}.
+     */
+    private final int capacity;
+
+    /**
+     * The output file for reporting, or {@code null} if none.
+     */
+    private final Path file;
+
+    /**
+     * The event emitted when this writer is closed, and the time when this writer was opened.
+     */
+    private final Events.Save event;
+    private final long openTime;
+
+    /**
+     * Opens a writer for the given file.
+     *
+     * @param  file         the output file, or {@code null} if none. A name ending with {@code ".gz"} causes compressed output.
+     * @param  parallelism  number of threads to use for formatting objects.
+     * @param  bufferSize   size of the output buffer, in bytes.
+     */
+    WKTWriter(final Path file, final int parallelism, final int bufferSize) throws IOException {
+        this(file, parallelism, bufferSize, Encoding.WKT2);
+    }
+
+    /**
+     * Opens a writer for the given file using the given encoding.
+     *
+     * @param  file         the output file, or {@code null} if none. A name ending with {@code ".gz"} causes compressed output.
+     * @param  parallelism  number of threads to use for formatting objects.
+     * @param  bufferSize   size of the output buffer, in bytes.
+     * @param  encoding     the format of the output.
+     */
+    WKTWriter(final Path file, final int parallelism, final int bufferSize, final Encoding encoding) throws IOException {
+        event = new Events.Save();
+        event.begin();
+        openTime = System.nanoTime();
+        metrics = new Metrics((encoding == Encoding.WKT2) ? "save" : "save " + encoding);
+        this.file = file;
+        this.encoding = encoding;
+        final Map<Object,String> fragments = Collections.synchronizedMap(new WeakHashMap<>());
+        OutputStream stream = (file != null) ? Files.newOutputStream(file) : OutputStream.nullOutputStream();
+        if (file != null && file.getFileName().toString().endsWith(".gz")) {
+            stream = new GZIPOutputStream(stream, bufferSize);
+        }
+        out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), bufferSize);
+        if (parallelism <= 1) {
+            format      = encoding.formatter(fragments);
+            executor    = null;
+            formats     = null;
+            pending     = null;
+            pendingKeys = null;
+            capacity    = 0;
+        } else {
+            format      = null;
+            executor    = Executors.newFixedThreadPool(parallelism);
+            formats     = ThreadLocal.withInitial(() -> encoding.formatter(fragments));
+            capacity    = parallelism * PENDING_PER_THREAD;
+            pending     = new ArrayDeque<>(capacity);
+            pendingKeys = new ArrayDeque<>(capacity);
+        }
+    }
+
+    /**
+     * Formats the given object and writes it after all previously given objects.
+     * The key is an identifier given to the {@linkplain #cache} and {@linkplain #listener}.
+     * If formatting is done in background threads, this method may return before
+     * the object is written, but blocks if too many objects are waiting.
+     */
+    void write(final String key, final Object object) throws IOException {
+        if (executor == null) {
+            print(key, format(format, object));
+        } else {
+            enqueue(key, executor.submit(() -> format(formats.get(), object)));
+        }
+    }
+
+    /**
+     * Formats the given object with the given format, measuring the time spent.
+     */
+    private String format(final Function<Object,String> f, final Object object) {
+        final long start = System.nanoTime();
+        final String text = f.apply(object);
+        metrics.formatTime.add(System.nanoTime() - start);
+        return text;
+    }
+
+    /**
+     * Writes an already formatted text after all previously given objects.
+     */
+    void writeText(final String key, final String text) throws IOException {
+        if (executor == null) {
+            print(key, text);
+        } else {
+            enqueue(key, CompletableFuture.completedFuture(text));
+        }
+    }
+
+    /**
+     * Adds the given task in the queue of texts to write, after writing the oldest text if the queue is full.
+     */
+    private void enqueue(final String key, final Future<String> task) throws IOException {
+        if (pending.size() >= capacity) {
+            print(pendingKeys.removeFirst(), take(pending.removeFirst()));
+        }
+        pending.addLast(task);
+        pendingKeys.addLast(key);
+    }
+
+    /**
+     * Writes the given WKT followed by an empty line, or by a line separator if the encoding is single-line.
+     */
+    private void print(final String key, final String wkt) throws IOException {
+        final long start = System.nanoTime();
+        out.write(wkt);
+        out.newLine();
+        if (!encoding.isSingleLine()) {
+            out.newLine();
+        }
+        metrics.ioTime.add(System.nanoTime() - start);
+        metrics.read.increment();
+        metrics.accepted.increment();
+        if (cache != null) {
+            cache.setText(key, wkt);
+        }
+        if (listener != null) {
+            listener.accept(key, wkt);
+        }
+    }
+
+    /**
+     * Waits for the given text to be formatted and returns it.
+     */
+    private static String take(final Future<String> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error)            throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Writes all pending objects, then closes the output file.
+     * The elapsed time recorded in {@link #metrics} is the time since this writer was opened.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (executor != null) try {
+                while (!pending.isEmpty()) {
+                    print(pendingKeys.removeFirst(), take(pending.removeFirst()));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            final long start = System.nanoTime();
+            out.close();
+            metrics.ioTime.add(System.nanoTime() - start);
+            metrics.elapsedTime = System.nanoTime() - openTime;
+            event.end();
+            if (event.shouldCommit()) {
+                event.file    = String.valueOf(file);
+                event.written = metrics.accepted.sum();
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.util.FactoryException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link CRSServer} on the catalog generated by {@link PipelineTest}.
+ */
+public final class CRSServerTest {
+    /**
+     * Directory where to write the catalog and the main output.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Sends a GET request to the given URL and returns the response, or {@code null} if the status is not 200.
+     */
+    private static String get(final URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            if (connection.getResponseCode() != 200) {
+                return null;
+            }
+            try (InputStream in = connection.getInputStream()) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests that the responses contain the same WKT than the main output of the conversion,
+     * for the first and all following requests.
+     */
+    @Test
+    public void testSameAsOutput() throws IOException, FactoryException {
+        final Path directory = folder.getRoot().toPath();
+        PipelineTest.catalog(directory);
+        final Pipeline pipeline = new Pipeline(directory);
+        pipeline.run();
+        final String separator = System.lineSeparator();
+        final String[] expected = new String(Files.readAllBytes(pipeline.output), StandardCharsets.UTF_8).split(separator + separator);
+        assertEquals(1000, expected.length);
+        try (CRSServer server = new CRSServer(directory, 2, 10)) {
+            final int port = server.start(0, 2);
+            final String base = "http://localhost:" + port + "/crs?";
+            for (int i=0; i<3; i++) {
+                assertEquals(expected[0] + separator, get(new URL(base + "code=IAU:2015:10100")));
+                assertEquals(expected[1] + separator, get(new URL(base + "code=IAU:2015:10101")));
+                assertEquals(expected[1] + separator, get(new URL(base + "name=body%201%20/%20ographic")));
+            }
+            final String projected = get(new URL(base + "code=IAU:2015:10111"));
+            assertNotNull(projected);
+            assertTrue(projected, projected.contains("Sinusoidal"));
+            assertEquals(1, Arrays.stream(expected).filter((text) -> (text + separator).equals(projected)).count());
+            assertNull(get(new URL(base + "code=IAU:2015:10000")));
+        }
+    }
+}
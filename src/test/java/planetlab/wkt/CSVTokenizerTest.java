@@ -0,0 +1,209 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link CSVTokenizer}.
+ */
+public final class CSVTokenizerTest {
+    /**
+     * Directory where to write the CSV files to memory-map.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns the characters of a CSV file with quotes inside unquoted fields, quoted fields containing
+     * separators, escaped quotes and line separators, comment lines and both kinds of line separators.
+     */
+    private static char[] sample() {
+        final StringBuilder buffer = new StringBuilder("Code,Name,Remarks\n");
+        for (int i=0; i<200; i++) {
+            switch (i % 4) {
+                case 0: buffer.append(i).append(",Crater 5\"N,plain\n"); break;
+                case 1: buffer.append(i).append(",\"Quoted, with \"\"escaped\"\" quotes\nand a line separator\",x\"y\r\n"); break;
+                case 2: buffer.append("# Comment with a \"quote\n"); break;
+                case 3: buffer.append(i).append(",  \"Blanks before quote\"  ,\"Unclosed\" tail\n"); break;
+            }
+        }
+        return buffer.toString().toCharArray();
+    }
+
+    /**
+     * Returns the columns of all records of the given tokenizer.
+     */
+    private static List<List<String>> read(final CSVTokenizer records) {
+        final List<List<String>> values = new ArrayList<>();
+        while (records.next()) {
+            values.add(Arrays.asList(records.columns().clone()));
+        }
+        return values;
+    }
+
+    /**
+     * Returns a tokenizer for the given text.
+     */
+    private static CSVTokenizer tokenizer(final String text) {
+        final char[] chars = text.toCharArray();
+        return new CSVTokenizer(chars, 0, chars.length);
+    }
+
+    /**
+     * Tests the values of a record having a quote inside an unquoted field.
+     */
+    @Test
+    public void testQuoteInsideField() {
+        final CSVTokenizer records = tokenizer("4,Crater 5\"N,x\"y\n");
+        assertTrue(records.next());
+        assertArrayEquals(new String[] {"4", "Crater 5\"N", "x\"y"}, records.columns());
+        assertFalse(records.next());
+    }
+
+    /**
+     * Tests that parsing the chunks computed by {@link CSVTokenizer#split(int)} gives
+     * the same records than parsing the whole file, for various numbers of chunks.
+     */
+    @Test
+    public void testSplit() {
+        final char[] chars = sample();
+        final List<List<String>> expected = read(new CSVTokenizer(chars, 0, chars.length));
+        assertEquals(151, expected.size());
+        assertEquals(Arrays.asList("1", "Quoted, with \"escaped\" quotes\nand a line separator", "x\"y"), expected.get(2));
+        for (int count=1; count<=32; count++) {
+            final CSVTokenizer records = new CSVTokenizer(chars, 0, chars.length);
+            final int[] splits = records.split(count);
+            assertTrue(splits.length <= count + 1);
+            final List<List<String>> actual = new ArrayList<>();
+            for (int i=1; i<splits.length; i++) {
+                actual.addAll(read(records.subset(splits[i-1], splits[i])));
+            }
+            assertEquals("count=" + count, expected, actual);
+        }
+    }
+
+    /**
+     * Tests quoted fields containing escaped quotes, including fields made only of escaped quotes.
+     */
+    @Test
+    public void testEscapedQuotes() {
+        final CSVTokenizer records = tokenizer("1,\"a \"\"b\"\" c\",\"\"\"\",\"\"\"\"\"\",\"\"\n");
+        assertTrue(records.next());
+        assertArrayEquals(new String[] {"1", "a \"b\" c", "\"", "\"\"", ""}, records.columns());
+        assertFalse(records.isEscaped(0));
+        assertTrue (records.isEscaped(1));
+        assertTrue (records.isEscaped(3));
+        assertFalse(records.isEscaped(4));
+        assertFalse(records.next());
+    }
+
+    /**
+     * Tests quoted fields containing line separators, empty lines and text looking like comments.
+     */
+    @Test
+    public void testEmbeddedLineSeparators() {
+        final CSVTokenizer records = tokenizer(
+                "1,\"first\r\nsecond\n\n# third\",x\n" +
+                "# Comment\n" +
+                "\r\n" +
+                "2,\"\n\",y");
+        assertTrue(records.next());
+        assertArrayEquals(new String[] {"1", "first\r\nsecond\n\n# third", "x"}, records.columns());
+        assertTrue(records.next());
+        assertArrayEquals(new String[] {"2", "\n", "y"}, records.columns());
+        assertFalse(records.next());
+    }
+
+    /**
+     * Tests {@link CSVTokenizer#split(int)} on a file where most chunk boundaries computed from the length
+     * would fall inside quoted fields. Those fields contain line separators, separators, escaped quotes
+     * and lines which would be comments or quoted fields if they were outside the quotes.
+     */
+    @Test
+    public void testSplitInsideQuotedFields() {
+        final StringBuilder buffer = new StringBuilder();
+        final List<List<String>> expected = new ArrayList<>();
+        for (int i=0; i<5; i++) {
+            final StringBuilder field = new StringBuilder();
+            for (int j=0; j<100; j++) {
+                field.append(j % 3 == 0 ? "# not a comment" : "\"quoted\", 4,\"").append('\n');
+            }
+            buffer.append(i).append(",\"").append(field.toString().replace("\"", "\"\"")).append("\",end\n");
+            expected.add(Arrays.asList(String.valueOf(i), field.toString(), "end"));
+        }
+        final char[] chars = buffer.toString().toCharArray();
+        for (int count=1; count<=16; count++) {
+            final CSVTokenizer records = new CSVTokenizer(chars, 0, chars.length);
+            final int[] splits = records.split(count);
+            assertTrue(splits.length <= Math.min(count, expected.size()) + 1);
+            final List<List<String>> actual = new ArrayList<>();
+            for (int i=1; i<splits.length; i++) {
+                actual.addAll(read(records.subset(splits[i-1], splits[i])));
+            }
+            assertEquals("count=" + count, expected, actual);
+        }
+    }
+
+    /**
+     * Tests that column hash codes and comparisons are consistent with the decoded strings
+     * when the columns contain non-ASCII characters.
+     */
+    @Test
+    public void testNonASCII() {
+        final CSVTokenizer records = tokenizer("Cérès, \"Ω \"\"Mons\"\"\" ,Io\n");
+        assertTrue(records.next());
+        assertArrayEquals(new String[] {"Cérès", "Ω \"Mons\"", "Io"}, records.columns());
+        assertEquals("Cérès".hashCode(), records.columnHash(0));
+        assertEquals("Io".hashCode(),    records.columnHash(2));
+        assertTrue (records.columnEquals(0, "Cérès"));
+        assertFalse(records.columnEquals(0, "Ceres"));
+        assertFalse(records.columnEquals(0, "Cérè"));
+        assertTrue (records.columnEquals(2, "Io"));
+        assertFalse(records.columnEquals(2, "I"));
+        assertFalse(records.columnEquals(2, "Ios"));
+    }
+
+    /**
+     * Tests reading a memory-mapped file, which is tokenized without being decoded as a whole.
+     */
+    @Test
+    public void testOpen() throws IOException {
+        final char[] chars = sample();
+        final File file = folder.newFile("sample.csv");
+        Files.write(file.toPath(), new String(chars).replace("Crater", "Cratère").getBytes(StandardCharsets.UTF_8));
+        final List<List<String>> expected = read(tokenizer(new String(chars).replace("Crater", "Cratère")));
+        final CSVTokenizer records = CSVTokenizer.open(file.toPath());
+        final int[] splits = records.split(4);
+        final List<List<String>> actual = new ArrayList<>();
+        for (int i=1; i<splits.length; i++) {
+            actual.addAll(read(records.subset(splits[i-1], splits[i])));
+        }
+        assertEquals(expected, actual);
+    }
+}
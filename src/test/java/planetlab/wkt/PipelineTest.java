@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.apache.sis.referencing.crs.DefaultGeographicCRS;
+import org.apache.sis.util.ComparisonMode;
+import org.apache.sis.util.Utilities;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.referencing.IdentifiedObject;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.crs.GeodeticCRS;
+import org.opengis.referencing.crs.GeographicCRS;
+import org.opengis.referencing.crs.ProjectedCRS;
+import org.opengis.referencing.datum.Ellipsoid;
+import org.opengis.referencing.datum.GeodeticDatum;
+import org.opengis.util.FactoryException;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link Pipeline} on a generated catalog.
+ */
+public final class PipelineTest {
+    /**
+     * Number of bodies in the generated catalog.
+     */
+    private static final int BODIES = 300;
+
+    /**
+     * Directory where to write the catalog and the outputs.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes the CSV files of a catalog with {@value #BODIES} bodies in the given directory.
+     * Each body has an ellipsoid, a datum, three planetodetic CRSs and two or three projected CRSs.
+     * Some bodies have a duplicated planetodetic CRS and a duplicated projected CRS with different names,
+     * some projected CRSs use an unknown method, and some datums have an unsupported prime meridian.
+     *
+     * @return number of duplicated planetodetic CRSs, which is also the number of duplicated projected CRSs.
+     */
+    static int catalog(final Path directory) throws IOException {
+        final StringBuilder ellipsoids    = new StringBuilder("authority,version,code,name,semiMajorAxis,semiMedianAxis,semiMinorAxis,inverseFlatenning\n");
+        final StringBuilder datums        = new StringBuilder("authority,version,code,name,body,ellipsoid,primeMeridianName,primeMeridianValue\n");
+        final StringBuilder planetodetics = new StringBuilder("authority,version,code,name,datum,csType,longitudeDirection\n");
+        final StringBuilder projections   = new StringBuilder("authority,version,code,name,baseCRS,method,parameterName,parameterValue\n");
+        int duplicated = 0;
+        for (int i=0; i<BODIES; i++) {
+            final int    code = 10000 + 100 * i;
+            final String key  = "IAU:2015:" + code;
+            final int    axis = 1000000 + 1000 * i;
+            ellipsoids.append("IAU,2015,").append(code).append(",\"Body ").append(i).append(" (2015), IAU\",")
+                      .append(axis).append(",,").append(axis - i).append(",\n");
+            datums.append("IAU,2015,").append(code).append(",D_Body_").append(i).append(",Body ").append(i)
+                  .append(',').append(key).append(",Reference Meridian,").append(i % 3 == 0 ? 10 : 0).append('\n');
+            planetodetics.append("IAU,2015,").append(code)    .append(",Body ").append(i).append(" / Ocentric,")   .append(key).append(",spherical,east\n")
+                         .append("IAU,2015,").append(code + 1).append(",Body ").append(i).append(" / Ographic,")   .append(key).append(",ellipsoidal,west\n")
+                         .append("IAU,2015,").append(code + 2).append(",Body ").append(i).append(" / Ellipsoid,")  .append(key).append(",ellipsoidal,east\n");
+            projections.append("IAU,2015,").append(code + 10).append(",Body ").append(i).append(" / Equirectangular,IAU:2015:").append(code + 1)
+                       .append(",Equirectangular,Central_Meridian,").append(i % 180).append(",Standard_Parallel_1,0,False_Easting,0,False_Northing,0\n")
+                       .append("IAU,2015,").append(code + 11).append(",\"Body ").append(i).append(", Sinusoidal\",IAU:2015:").append(code + 2)
+                       .append(",Sinusoidal,Longitude_Of_Center,180,False_Easting,0,False_Northing,0\n");
+            if (i % 7 == 0) {
+                planetodetics.append("IAU,2015,").append(code + 1).append(",Duplicate ").append(i).append(',').append(key).append(",ellipsoidal,east\n");
+                projections.append("IAU,2015,").append(code + 10).append(",Duplicate ").append(i).append(",IAU:2015:").append(code + 2)
+                           .append(",Sinusoidal,Longitude_Of_Center,0\n");
+                if (i % 3 != 0) duplicated++;           // Otherwise the datum is rejected.
+            }
+            if (i % 11 == 0) {
+                projections.append("IAU,2015,").append(code + 12).append(",Unknown ").append(i).append(",IAU:2015:").append(code)
+                           .append(",No such method,Central_Meridian,0\n");
+            }
+        }
+        write(directory, Pipeline.ELLIPSOIDS,    ellipsoids);
+        write(directory, Pipeline.DATUMS,        datums);
+        write(directory, Pipeline.PLANETODETICS, planetodetics);
+        write(directory, Pipeline.PROJECTIONS,   projections);
+        return duplicated;
+    }
+
+    /**
+     * Writes the given CSV content in the given file of the given directory.
+     */
+    private static void write(final Path directory, final String file, final CharSequence content) throws IOException {
+        Files.write(directory.resolve(file), content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Replaces a text in the given file of the given directory.
+     */
+    private static void replace(final Path directory, final String file, final String old, final String replacement)
+            throws IOException
+    {
+        final Path path = directory.resolve(file);
+        final String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        assertTrue(old, content.contains(old));
+        write(directory, file, content.replace(old, replacement));
+    }
+
+    /**
+     * Converts the catalog in the given directory and returns the pipeline, for inspecting its metrics.
+     */
+    private static Pipeline convert(final Path directory, final Path output, final int parallelism, final boolean streaming)
+            throws IOException, FactoryException
+    {
+        final Pipeline pipeline = new Pipeline(directory);
+        pipeline.output      = output;
+        pipeline.parallelism = parallelism;
+        pipeline.streaming   = streaming;
+        pipeline.run();
+        return pipeline;
+    }
+
+    /**
+     * Converts the catalog in the given directory in incremental mode, using the given cache file.
+     */
+    private static Pipeline convert(final Path directory, final Path output, final Path cache)
+            throws IOException, FactoryException
+    {
+        final Pipeline pipeline = new Pipeline(directory);
+        pipeline.output      = output;
+        pipeline.cache       = cache;
+        pipeline.parallelism = 4;
+        pipeline.run();
+        return pipeline;
+    }
+
+    /**
+     * Returns the number of rows which have been rebuilt by each parser, i.e. not skipped as unchanged.
+     */
+    private static long[] rebuilt(final Pipeline pipeline) {
+        final Parser<?>[] parsers = {pipeline.ellipsoids, pipeline.datums, pipeline.planetodetics, pipeline.projected};
+        final long[] counts = new long[parsers.length];
+        for (int i=0; i<parsers.length; i++) {
+            final Metrics metrics = parsers[i].metrics();
+            counts[i] = metrics.read.sum() - metrics.skipped.sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the number of rows read, accepted, duplicated and rejected by each parser.
+     */
+    private static String counts(final Pipeline pipeline) {
+        final StringBuilder buffer = new StringBuilder();
+        for (final Metrics stage : pipeline.metrics()) {
+            if (stage.stage.endsWith("Parser")) {
+                buffer.append(stage.stage).append(": ").append(stage.read).append(' ').append(stage.accepted)
+                      .append(' ').append(stage.duplicated).append(' ').append(stage.rejected()).append('\n');
+            }
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Tests that parallel conversions write the same bytes than the sequential conversion,
+     * and detect the same duplicated entries, keeping the first one in file order.
+     */
+    @Test
+    public void testParallelism() throws IOException, FactoryException {
+        final Path directory = folder.getRoot().toPath();
+        final int duplicated = catalog(directory);
+        final Path expectedFile = directory.resolve("sequential.txt");
+        final Pipeline sequential = convert(directory, expectedFile, 1, false);
+        final byte[] expected = Files.readAllBytes(expectedFile);
+        final String text = new String(expected, StandardCharsets.UTF_8);
+        assertTrue (text.contains("Body 7 / Ographic"));
+        assertFalse(text.contains("Duplicate"));
+        assertFalse(text.contains("Unknown"));
+        assertEquals(duplicated, sequential.planetodetics.metrics().duplicated.sum());
+        assertEquals(duplicated, sequential.projected.metrics().duplicated.sum());
+        final String counts = counts(sequential);
+        for (final boolean streaming : new boolean[] {false, true}) {
+            for (final int parallelism : new int[] {1, 2, 4, 7}) {
+                final String label = "parallelism=" + parallelism + ", streaming=" + streaming;
+                final Path actualFile = directory.resolve("parallel.txt");
+                final Pipeline parallel = convert(directory, actualFile, parallelism, streaming);
+                assertArrayEquals(label, expected, Files.readAllBytes(actualFile));
+                assertEquals(label, counts, counts(parallel));
+            }
+        }
+    }
+
+    /**
+     * Tests that an incremental conversion rebuilds only the rows which changed and the rows depending on them,
+     * and writes the same bytes than a full conversion. Rejected and duplicated rows are not cached, so they are
+     * rebuilt in every run; the number of those rows is measured by a run without change.
+     */
+    @Test
+    public void testIncremental() throws IOException, FactoryException {
+        final Path directory = folder.getRoot().toPath();
+        final Path cache     = directory.resolve("wkt.cache");
+        final Path output    = directory.resolve("incremental.txt");
+        final Path expected  = directory.resolve("full.txt");
+        catalog(directory);
+        convert(directory, output, cache);
+        final long[] unchanged = rebuilt(convert(directory, output, cache));
+        /*
+         * Change the ellipsoid of body 1, which is used by one datum, three planetodetic CRSs
+         * and two projected CRSs. Change also a projected CRS of body 2.
+         */
+        replace(directory, Pipeline.ELLIPSOIDS, "IAU\",1001000,,1000999,", "IAU\",1001500,,1000999,");
+        replace(directory, Pipeline.PROJECTIONS, "IAU:2015:10202,Sinusoidal,Longitude_Of_Center,180,",
+                                                 "IAU:2015:10202,Sinusoidal,Longitude_Of_Center,90,");
+        final long[] rebuilt = rebuilt(convert(directory, output, cache));
+        assertArrayEquals(new long[] {unchanged[0] + 1, unchanged[1] + 1, unchanged[2] + 3, unchanged[3] + 3}, rebuilt);
+        convert(directory, expected, 1, false);
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(output));
+        final String text = new String(Files.readAllBytes(output), StandardCharsets.UTF_8);
+        assertTrue(text.contains("1001500"));
+        /*
+         * A new run without change rebuilds nothing more than the first run without change.
+         */
+        assertArrayEquals(unchanged, rebuilt(convert(directory, output, cache)));
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(output));
+    }
+
+    /**
+     * Tests that the objects written in a snapshot can be read back by key,
+     * using the stored types, their subtypes, implementation classes or parent types.
+     */
+    @Test
+    public void testSnapshot() throws IOException, FactoryException {
+        final Path directory = folder.getRoot().toPath();
+        catalog(directory);
+        final Pipeline pipeline = new Pipeline(directory);
+        pipeline.output   = directory.resolve("wkt.txt");
+        pipeline.snapshot = directory.resolve("registry.bin");
+        pipeline.run();
+        final Snapshot snapshot = Snapshot.open(pipeline.snapshot);
+        long count = 0;
+        for (final Parser<?> parser : new Parser<?>[] {pipeline.ellipsoids, pipeline.datums, pipeline.planetodetics, pipeline.projected}) {
+            count += parser.results().size();
+        }
+        assertEquals(count, snapshot.size());
+
+        assertRoundTrip(snapshot, pipeline.ellipsoids,    Ellipsoid.class,     "IAU:2015:10100");
+        assertRoundTrip(snapshot, pipeline.datums,        GeodeticDatum.class, "IAU:2015:10100");
+        assertRoundTrip(snapshot, pipeline.planetodetics, GeodeticCRS.class,   "IAU:2015:10100");
+        assertRoundTrip(snapshot, pipeline.planetodetics, GeodeticCRS.class,   "IAU:2015:10101");
+        assertRoundTrip(snapshot, pipeline.projected,     ProjectedCRS.class,  "IAU:2015:10110");
+        assertRoundTrip(snapshot, pipeline.projected,     ProjectedCRS.class,  "IAU:2015:10111");
+
+        final GeographicCRS geographic = snapshot.get(GeographicCRS.class, "IAU:2015:10101");
+        assertNotNull(geographic);
+        assertSame(geographic, snapshot.get(GeodeticCRS.class, "IAU:2015:10101"));
+        assertSame(geographic, snapshot.get(DefaultGeographicCRS.class, "IAU:2015:10101"));
+        assertSame(geographic, snapshot.get(CoordinateReferenceSystem.class, "IAU:2015:10101"));
+        assertSame(geographic, snapshot.get(IdentifiedObject.class, "IAU:2015:10101"));
+        assertTrue(snapshot.get(CoordinateReferenceSystem.class, "IAU:2015:10110") instanceof ProjectedCRS);
+        assertTrue(snapshot.get(IdentifiedObject.class, "IAU:2015:10100") instanceof GeodeticCRS);
+        assertNotNull(snapshot.wkt(GeographicCRS.class, "IAU:2015:10101"));
+
+        assertNull(snapshot.get(ProjectedCRS.class, "IAU:2015:10101"));
+        assertNull(snapshot.get(Ellipsoid.class,    "IAU:2015:10101"));
+        assertNull(snapshot.get(GeodeticCRS.class,  "IAU:2015:10000"));         // Rejected because of the prime meridian.
+        assertNull(snapshot.wkt(Ellipsoid.class,    "IAU:2015:99999"));
+    }
+
+    /**
+     * Verifies that the object of the given key rebuilt from the snapshot is equal to the object created by the parser,
+     * and that the same instance is returned on next access.
+     */
+    private static <T extends IdentifiedObject> void assertRoundTrip(final Snapshot snapshot, final Parser<?> parser,
+            final Class<T> type, final String key) throws FactoryException
+    {
+        final T object = snapshot.get(type, key);
+        assertNotNull(key, object);
+        assertTrue(key, Utilities.deepEquals(parser.results().get(key), object, ComparisonMode.APPROXIMATE));
+        assertSame(key, object, snapshot.get(type, key));
+    }
+}
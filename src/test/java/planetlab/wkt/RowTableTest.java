@@ -0,0 +1,88 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link RowTable}.
+ */
+public final class RowTableTest {
+    /**
+     * Returns a table with the columns of an ellipsoid file: words, texts, then numbers in columns 4 to 7.
+     */
+    private static RowTable ellipsoids() {
+        return new RowTable(new EllipsoidParser()::kind);
+    }
+
+    /**
+     * Adds the records of the given CSV text in the given table.
+     */
+    private static void add(final RowTable table, final String text) {
+        final CSVTokenizer records = new CSVTokenizer(text.toCharArray(), 0, text.length());
+        while (records.next()) {
+            table.add(records);
+        }
+    }
+
+    /**
+     * Tests the values of each kind of column.
+     */
+    @Test
+    public void testValues() {
+        final RowTable table = ellipsoids();
+        add(table, "IAU,2015,49900,\"Mars (2015), IAU\",3396190,,3376200,\n"
+                 + "IAU,2015,30100,Moon,1737400,,1737400,,Trailing comment\n");
+        assertEquals(2, table.size());
+        assertEquals("IAU",              table.text(0, 0));
+        assertEquals("Mars (2015), IAU", table.text(0, 3));
+        assertEquals(3396190, table.number(0, 4), 0);
+        assertTrue(Double.isNaN(table.number(0, 5)));
+        assertTrue(Double.isNaN(table.number(0, 8)));
+        assertEquals(9, table.length(1));
+        assertEquals("Trailing comment", table.text(1, 8));
+    }
+
+    /**
+     * Tests that an unparsable number is reported only when requested,
+     * and that rows containing such value can be copied and removed.
+     */
+    @Test
+    public void testUnparsableNumber() {
+        final RowTable table = ellipsoids();
+        add(table, "IAU,2015,99900,Bad,abc,,3376200,\n");
+        assertEquals("abc", table.text(0, 4));
+        assertEquals(3376200, table.number(0, 6), 0);
+        try {
+            table.number(0, 4);
+            fail("Expected NumberFormatException.");
+        } catch (NumberFormatException e) {
+            assertTrue(e.getMessage().contains("abc"));
+        }
+        final RowTable copy = ellipsoids();
+        copy.add(table, 0);
+        assertEquals("abc", copy.text(0, 4));
+        assertEquals(3376200, copy.number(0, 6), 0);
+
+        table.removeLast();
+        add(table, "IAU,2015,49900,Mars,3396190,,3376200,\n");
+        assertEquals("Mars", table.text(0, 3));
+        assertEquals(3396190, table.number(0, 4), 0);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. You may not use this
+ * file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package planetlab.wkt;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Tests {@link ShardedStore}.
+ */
+public final class ShardedStoreTest {
+    /**
+     * The directory where to write the stores.
+     */
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns texts for the given number of codes on many bodies, by key.
+     */
+    private static Map<String,String> texts(final int count, final String version) {
+        final Map<String,String> texts = new LinkedHashMap<>();
+        for (int i=0; i<count; i++) {
+            final int code = 10000 + 37 * i;
+            texts.put("IAU:" + version + ':' + code, "GEODCRS[\"Body " + (code / 100) + " (" + version + ") – " + i + "\"]");
+        }
+        return texts;
+    }
+
+    /**
+     * Writes the given texts in a store in the given directory.
+     */
+    private static void write(final Path directory, final Map<String,String> texts) throws IOException {
+        try (ShardedStore.Writer writer = new ShardedStore.Writer(directory, 256)) {
+            texts.forEach(writer);
+        }
+    }
+
+    /**
+     * Verifies that all given texts, and only them, can be read from the store in the given directory.
+     */
+    private static void verify(final Path directory, final Map<String,String> texts) throws IOException {
+        try (ShardedStore store = ShardedStore.open(directory)) {
+            assertEquals(texts.size(), store.size());
+            for (final Map.Entry<String,String> entry : texts.entrySet()) {
+                assertEquals(entry.getKey(), entry.getValue(), store.wkt(entry.getKey()));
+            }
+            assertNull(store.wkt("IAU:2015:9"));
+            assertNull(store.wkt("IAU:2015:"));
+            assertNull(store.wkt("IAU:2015:100000000"));
+            assertNull(store.wkt("EPSG::4326"));
+        }
+    }
+
+    /**
+     * Tests writing and reading a store having more shards than the number of shards open at the same time.
+     */
+    @Test
+    public void testLookup() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final Map<String,String> texts = texts(3 * ShardedStore.Writer.MAX_OPEN_SHARDS * 100 / 37, "2015");
+        try (ShardedStore.Writer writer = new ShardedStore.Writer(directory, 256)) {
+            texts.forEach(writer);
+            writer.accept("IAU:2015:10000", "Duplicated key: only the first occurrence is indexed.");
+        }
+        verify(directory, texts);
+    }
+
+    /**
+     * Tests replacing a store by a new conversion. The shards of the previous conversion shall be deleted,
+     * but not the other files in the store directory.
+     */
+    @Test
+    public void testReplace() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final Path userFile  = Files.writeString(directory.resolve("wkt.txt"), "Not a shard.");
+        final Path otherFile = Files.writeString(directory.resolve("IAU_2015_100.wkt"), "Not a shard either.");
+        write(directory, texts(200, "2015"));
+        verify(directory, texts(200, "2015"));
+        final Path first = directory.resolve("shards-1");
+        assertTrue(Files.isDirectory(first));
+
+        final Map<String,String> texts = texts(50, "2018");
+        write(directory, texts);
+        verify(directory, texts);
+        assertFalse(Files.exists(first));
+        assertTrue(Files.isDirectory(directory.resolve("shards-2")));
+        assertEquals("Not a shard.",        Files.readString(userFile));
+        assertEquals("Not a shard either.", Files.readString(otherFile));
+    }
+
+    /**
+     * Tests that an aborted conversion leaves the previous store unchanged.
+     */
+    @Test
+    public void testAbort() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        write(directory, texts(200, "2015"));
+        final ShardedStore.Writer writer = new ShardedStore.Writer(directory, 256);
+        texts(50, "2018").forEach(writer);
+        writer.abort();
+        assertFalse(Files.exists(directory.resolve("shards-2")));
+        verify(directory, texts(200, "2015"));
+    }
+}